@@ -33,8 +33,111 @@ public class Configuration
 
     public static final InetAddress WIFI_DIRECT_GROUP_OWNER_ADDRESS = IpUtil.parseInetAddress("192.168.49.1");
     public static final int ADB_DAEMON_PORT = 5555;
+    public static final int ADB_SERVER_PORT = 5037;
+
+    /** Whether to talk to the ADB server over its socket rather than by running the adb executable */
+    public static boolean useAdbHostProtocol = true;
+    /** Whether to run each handle's shell commands in one long-lived shell rather than a new shell each; see ShellSession */
+    public static boolean useShellSession = true;
+    /** For how long what we learn of a device in one go when a handle opens is taken to be current */
+    public static int msHandleFactsFresh = 2000;
+    /** How long a device's property snapshot lasts before being retaken; see PropertySnapshot */
+    public static int msPropertySnapshotTtl = 60000;
+    /** How long we trust the properties that can change at any time (the TCPIP port, the WLAN address, etc) */
+    public static int msVolatilePropertyTtl = 1000;
+    /** How long after failing to take a property snapshot we'll wait before trying again */
+    public static int msPropertySnapshotFailureTtl = 2000;
+    /** How long we trust what we know of a device's network interfaces */
+    public static int msNetworkInterfacesTtl = 5000;
+    /** The most commands and property reads we'll have outstanding on any one device; see DeviceCommandScheduler */
+    public static int deviceCommandParallelism = 2;
+    /** The most output we retain from any one shell command; beyond that, the oldest lines are dropped */
+    public static int shellOutputMaxBytes = 1024 * 1024;
+    /** The longest line of shell command output we'll retain; the remainder of longer lines is dropped */
+    public static int shellOutputMaxLineBytes = 64 * 1024;
+    /** The most command results we'll remember across all devices; see CommandResultCache */
+    public static int commandResultCacheCapacity = 256;
+    /** Command results larger than this aren't worth remembering */
+    public static int commandResultCacheMaxEntryBytes = 64 * 1024;
+    /** How long we'll trust what we last learned of a setting, and of an interface from 'ifconfig' */
+    public static int msSettingResultTtl = 5 * 60 * 1000;
+    public static int msIfConfigResultTtl = 30000;
+    /** A device that's gone for longer than this may have changed, so we forget the command results we had for it */
+    public static int msCommandResultReconnectGrace = 30000;
+    /** Whether to track devices with our own 'host:track-devices-l' stream in addition to ddmlib's notifications */
+    public static boolean useAdbDeviceTracker = true;
 
     public static int msAdbTimeoutSlow = 4000;
     public static int msAdbTimeoutFast = 2000;
+    /** The longest we'll ever wait on a host adb operation that wasn't given a timeout of its own */
+    public static int msAdbCommandDeadline = 30000;
     public static int msTcpipConnectivityRefreshInterval = 10000;
+    /** How long one device's refreshTcpipConnectivity() may take before its device commands are abandoned */
+    public static int msTcpipConnectivityRefreshDeadline = 20000;
+    /** How many devices we'll refresh at once, and how long we'll give the lot of them */
+    public static int deviceRefreshParallelism = 4;
+    public static int msDeviceRefreshDeadline = 30000;
+
+    /** Backoff applied to addresses we've failed to reach; see FailureCache */
+    public static int msUnreachableBackoffInitial = 2000;
+    public static int msUnreachableBackoffMax = 60000;
+    public static int failureCacheCapacity = 256;
+
+    /** How long each candidate address gets a head start on the next when racing to reach a device */
+    public static int msConnectionRaceStagger = 250;
+    /** How many recently-used addresses we remember for each device */
+    public static int learnedAddressCapacity = 4;
+
+    /** The most TCP port probes we'll have in progress at once; see TcpProber */
+    public static int tcpProbeConcurrency = 1024;
+    /** Whether probing an adbd port goes on to confirm that adbd answers an ADB CNXN */
+    public static boolean tcpProbeHandshake = true;
+
+    /** How soon after asking a device to listen on TCPIP we first look to see if it is; see ListenReadinessDetector */
+    public static int msListenPollInitial = 50;
+    /** The interval between looks doubles each time, up to this */
+    public static int msListenPollMax = 1000;
+
+    /** How many of each device's recent connectivity transitions we keep for debugging */
+    public static int connectivityTransitionHistory = 16;
+
+    /** How long a successful ping or adbd probe is believed; see ReachabilityService */
+    public static int msReachablePositiveTtl = 5000;
+    /** How long a failed one is */
+    public static int msReachableNegativeTtl = 2000;
+    /** Once it's remembering this many addresses, the service forgets those whose answers have expired */
+    public static int reachabilityCacheSweepThreshold = 256;
+
+    /** Whether to watch TCPIP connections for silent death; see KeepaliveMonitor */
+    public static boolean useKeepalive = true;
+    /** Checks of a healthy connection start this far apart, and grow to at most the max */
+    public static int msKeepaliveIntervalMin = 5000;
+    public static int msKeepaliveIntervalMax = 60000;
+    public static int msKeepaliveProbeTimeout = 2000;
+    /** Every so many checks also has the device's shell echo back to us; zero never does */
+    public static int keepaliveEchoEvery = 4;
+    /** How many checks must fail in a row before we reconnect */
+    public static int keepaliveFailureThreshold = 2;
+    /** The most probes (TCP or echo) we'll send any one device in a minute */
+    public static int keepaliveMaxProbesPerMinute = 12;
+
+    /** Reconnects to an address we've lost back off from this, doubling each time; see ReconnectScheduler */
+    public static int msReconnectBackoffInitial = 1000;
+    public static int msReconnectBackoffMax = 30000;
+    /** The fraction by which each backoff may randomly be lengthened or shortened */
+    public static double reconnectJitter = 0.25;
+    public static int reconnectMaxAttempts = 5;
+    /** How many times we refresh all devices' connectivity after the network changes (at intervals
+     * starting from msTcpipConnectivityRefreshInterval) */
+    public static int networkRefreshMaxAttempts = 3;
+    /** The most reconnect attempts of all kinds we'll make in any one minute */
+    public static int reconnectMaxAttemptsPerMinute = 20;
+
+    /** Whether to sweep the subnets of newly-up interfaces looking for adbd listeners; see AdbSubnetScanner */
+    public static boolean useSubnetScan = true;
+    /** Subnets with shorter prefixes than this (ie: larger ones) are not swept */
+    public static int subnetScanMinPrefixLength = 22;
+    public static int subnetScanConcurrency = 1024;
+    public static int subnetScanProbesPerSecond = 1000;
+    public static int msSubnetScanProbeTimeout = 500;
     }
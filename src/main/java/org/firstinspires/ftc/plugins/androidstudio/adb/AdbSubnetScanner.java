@@ -0,0 +1,184 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
+import org.firstinspires.ftc.plugins.androidstudio.util.TcpProber;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link AdbSubnetScanner} looks for adbd listeners on the subnets of our local network interfaces,
+ * so that we can find devices whose addresses we don't (yet) know. Every address on each subnet
+ * is probed on {@link Configuration#ADB_DAEMON_PORT} at once, subject to limits on the number
+ * and rate of outstanding probes. Whatever answers is handed to 'adb connect'; the resulting
+ * handles are matched to their {@link AndroidDevice}s in the usual way once their USB serial
+ * numbers resolve.
+ */
+@SuppressWarnings("WeakerAccess")
+public class AdbSubnetScanner
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "AdbSubnetScanner";
+
+    protected final AndroidDeviceDatabase database;
+    protected final TcpProber prober = new TcpProber(Configuration.subnetScanConcurrency, Configuration.subnetScanProbesPerSecond);
+    protected final AtomicReference<CompletableFuture<List<InetSocketAddress>>> currentScan = new AtomicReference<>(null);
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public AdbSubnetScanner(AndroidDeviceDatabase database)
+        {
+        this.database = database;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Sweeps the subnets of the indicated interfaces, connecting to whatever's found there. If
+     * a sweep is already underway, then that's returned instead of starting another. */
+    public CompletableFuture<List<InetSocketAddress>> scan(Collection<NetworkInterface> networkInterfaces)
+        {
+        CompletableFuture<List<InetSocketAddress>> result = new CompletableFuture<>();
+        CompletableFuture<List<InetSocketAddress>> existing = currentScan.get();
+        if ((existing != null && !existing.isDone()) || !currentScan.compareAndSet(existing, result))
+            {
+            EventLog.dd(TAG, "scan already underway");
+            return currentScan.get();
+            }
+
+        Set<InetSocketAddress> targets = new LinkedHashSet<>();
+        for (NetworkInterface networkInterface : networkInterfaces)
+            {
+            targets.addAll(getScanTargets(networkInterface));
+            }
+
+        long nsStart = System.nanoTime();
+        EventLog.dd(TAG, "scanning %d addresses", targets.size());
+        List<CompletableFuture<Void>> probes = new ArrayList<>();
+        List<InetSocketAddress> hits = Collections.synchronizedList(new ArrayList<>());
+        for (InetSocketAddress target : targets)
+            {
+            probes.add(prober.probe(target, Configuration.msSubnetScanProbeTimeout, Configuration.tcpProbeHandshake).thenAccept(listening ->
+                {
+                if (listening)
+                    {
+                    hits.add(target);
+                    onDiscovered(target);
+                    }
+                }));
+            }
+
+        CompletableFuture.allOf(probes.toArray(new CompletableFuture[probes.size()])).whenComplete((ignored, throwable) ->
+            {
+            EventLog.dd(TAG, "scanned %d addresses in %dms: found %s", targets.size(), (System.nanoTime() - nsStart) / 1000000, hits);
+            result.complete(new ArrayList<>(hits));
+            });
+        result.whenComplete((ignored, throwable) ->
+            {
+            for (CompletableFuture<Void> probe : probes) probe.cancel(true);
+            });
+        return result;
+        }
+
+    public void cancel()
+        {
+        CompletableFuture<List<InetSocketAddress>> scan = currentScan.get();
+        if (scan != null)
+            {
+            scan.cancel(true);
+            }
+        }
+
+    protected void onDiscovered(InetSocketAddress inetSocketAddress)
+        {
+        if (database.isConnectedAt(inetSocketAddress))
+            {
+            return;
+            }
+        EventLog.dd(TAG, "discovered adbd at %s: connecting", IpUtil.toString(inetSocketAddress));
+        database.getHostAdb().connectAsync(inetSocketAddress, Configuration.msAdbTimeoutSlow);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    /** Returns the adbd addresses on the interface's IPv4 subnets, less ourselves and the network
+     * and broadcast addresses. Subnets larger than {@link Configuration#subnetScanMinPrefixLength}
+     * allows are not scanned at all. */
+    protected List<InetSocketAddress> getScanTargets(NetworkInterface networkInterface)
+        {
+        List<InetSocketAddress> result = new ArrayList<>();
+        try {
+            if (networkInterface.isLoopback() || networkInterface.isPointToPoint() || !networkInterface.isUp())
+                {
+                return result;
+                }
+            }
+        catch (SocketException e)
+            {
+            return result;
+            }
+
+        for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses())
+            {
+            InetAddress inetAddress = interfaceAddress.getAddress();
+            int prefixLength = interfaceAddress.getNetworkPrefixLength();
+            if (!(inetAddress instanceof Inet4Address) || prefixLength < Configuration.subnetScanMinPrefixLength || prefixLength > 30)
+                {
+                continue;
+                }
+
+            int self = toInt(inetAddress);
+            int mask = -1 << (32 - prefixLength);
+            int network = self & mask;
+            int broadcast = network | ~mask;
+            for (int host = network + 1; host < broadcast; host++)
+                {
+                if (host != self)
+                    {
+                    result.add(new InetSocketAddress(fromInt(host), Configuration.ADB_DAEMON_PORT));
+                    }
+                }
+            }
+        return result;
+        }
+
+    protected static int toInt(InetAddress inetAddress)
+        {
+        byte[] bytes = inetAddress.getAddress();
+        return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        }
+
+    protected static InetAddress fromInt(int address)
+        {
+        try {
+            return InetAddress.getByAddress(new byte[] { (byte)(address >>> 24), (byte)(address >>> 16), (byte)(address >>> 8), (byte)address });
+            }
+        catch (UnknownHostException e)
+            {
+            throw new RuntimeException("internal error", e);
+            }
+        }
+    }
@@ -2,22 +2,30 @@ package org.firstinspires.ftc.plugins.androidstudio.adb;
 
 import com.android.ddmlib.IDevice;
 import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.CommandResultCache;
+import org.firstinspires.ftc.plugins.androidstudio.util.CancellationToken;
 import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.FailureCache;
 import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
 import org.firstinspires.ftc.plugins.androidstudio.util.ReentrantLockOwner;
 import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
-import org.firstinspires.ftc.plugins.androidstudio.util.ThreadPool;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -42,6 +50,17 @@ public class AndroidDevice extends ReentrantLockOwner
     protected final Map<String, AndroidDeviceHandle>    handles = new ConcurrentHashMap<>();
     protected       InetSocketAddress                   inetSocketAddressLastConnected = null;
     protected       String                              wifiDirectName = null;
+    /** Other addresses at which we've recently found him, oldest first */
+    protected final LinkedHashSet<InetSocketAddress>    learnedAddresses = new LinkedHashSet<>();
+    /** When we last closed our last handle; zero if we've never been open */
+    protected       long                                nsLastClosed = 0;
+    /** When we were last opened, in wall-clock ms; zero if never */
+    protected       long                                msLastOpened = 0;
+    /** How our most recent attempt to connect over TCPIP went, if we've made one */
+    protected       ConnectivityPipeline.Result         lastConnectivityResult = null;
+    /** Those waiting to hear that we've been opened over TCPIP; see {@link #whenOpenedUsingTcpip} */
+    protected final List<CompletableFuture<Boolean>>    tcpipOpenWaiters = new CopyOnWriteArrayList<>();
+    protected final ConnectivityStateMachine            connectivity = new ConnectivityStateMachine(this);
 
     //----------------------------------------------------------------------------------------------
     // Construction
@@ -63,22 +82,54 @@ public class AndroidDevice extends ReentrantLockOwner
     // Must be idempotent
     public AndroidDeviceHandle open(IDevice device)
         {
-        return lockWhile(() ->
+        AndroidDeviceHandle handle = lockWhile(() ->
             {
+            // If he's been away a while (as opposed to just switching between USB and TCPIP)
+            // he may have changed, so we shouldn't trust what we remember of him
+            if (handles.isEmpty() && nsLastClosed != 0 && System.nanoTime() - nsLastClosed > Configuration.msCommandResultReconnectGrace * 1000000L)
+                {
+                CommandResultCache.getInstance().invalidate(usbSerialNumber);
+                }
+
             AndroidDeviceHandle result = handles.computeIfAbsent(device.getSerialNumber(), ignored -> new AndroidDeviceHandle(device, this));
+            msLastOpened = System.currentTimeMillis();
 
-            // Remember the latest name for this fellow
-            AndroidDevice.this.updateWifiDirectName(result.getWifiDirectName());
+            // Remember the latest name for this fellow. Learning it along with everything
+            // else we're about to want to know saves us a round trip for each of those.
+            AndroidDeviceHandle.Facts facts = result.refreshFacts();
+            AndroidDevice.this.updateWifiDirectName(facts != null ? facts.wifiDirectName : result.getWifiDirectName());
 
             // If he's wireless (or at least non-usb) then remember that
             if (result.isTcpip())
                 {
-                inetSocketAddressLastConnected = IpUtil.parseInetSocketAddress(result.getSerialNumber());
+                inetSocketAddressLastConnected = result.getInetSocketAddress();
                 database.noteDeviceConnectedTcpip(this, inetSocketAddressLastConnected);
+                noteLearnedAddress(inetSocketAddressLastConnected);
+                FailureCache.getInstance().noteSuccess(inetSocketAddressLastConnected.getAddress());
+                tcpipOpenWaiters.forEach(waiter -> waiter.complete(true));
+                }
+            else if (result.isUSB())
+                {
+                // He's alive, so forget any past failures to reach him wirelessly
+                if (inetSocketAddressLastConnected != null)
+                    {
+                    FailureCache.getInstance().clear(inetSocketAddressLastConnected.getAddress());
+                    }
+                FailureCache.getInstance().clear(Configuration.WIFI_DIRECT_GROUP_OWNER_ADDRESS);
                 }
 
             return result;
             });
+
+        if (handle.isTcpip())
+            {
+            connectivity.noteTcpConnected("tcpip attached");
+            database.getKeepaliveMonitor().track(handle);
+            database.getReconnectScheduler().noteConnected(handle.getInetSocketAddress());
+            }
+        else if (handle.isUSB())
+            connectivity.noteUsbAttached();
+        return handle;
         }
 
     public void close(AndroidDeviceHandle deviceHandle)
@@ -86,6 +137,10 @@ public class AndroidDevice extends ReentrantLockOwner
         lockWhile(() ->
             {
             handles.remove(deviceHandle.getSerialNumber());
+            if (handles.isEmpty())
+                {
+                nsLastClosed = System.nanoTime();
+                }
 
             if (deviceHandle.isTcpip() && handles.size()==0)
                 {
@@ -95,16 +150,25 @@ public class AndroidDevice extends ReentrantLockOwner
                 //
                 InetSocketAddress inetSocketAddress = deviceHandle.getInetSocketAddress();
                 EventLog.dd(TAG, "lost tcpip/last connection: attempting reconnect: %s", IpUtil.toString(inetSocketAddress));
-                ThreadPool.getDefault().execute(() -> database.getHostAdb().connect(inetSocketAddress, Configuration.msAdbTimeoutSlow));
+                database.getReconnectScheduler().reconnect(inetSocketAddress, "lost last connection");
                 }
             });
+
+        database.getKeepaliveMonitor().untrack(deviceHandle);
+        List<AndroidDeviceHandle> remaining = getOpenHandles();
+        connectivity.noteHandleClosed(deviceHandle.isTcpip(), remaining.stream().anyMatch(AndroidDeviceHandle::isTcpip), !remaining.isEmpty());
         }
 
     public void debugDump(int indent, PrintStream out)
         {
         lockWhile(() ->
             {
-            StringUtil.appendLine(indent, out, "device=%s inetSocketAddressLastConnected=%s", getDebugDisplayName(), IpUtil.toString(inetSocketAddressLastConnected));
+            StringUtil.appendLine(indent, out, "device=%s inetSocketAddressLastConnected=%s learned=%s", getDebugDisplayName(), IpUtil.toString(inetSocketAddressLastConnected), learnedAddresses);
+            if (lastConnectivityResult != null)
+                {
+                StringUtil.appendLine(indent + 1, out, "lastConnectivity=%s", lastConnectivityResult);
+                }
+            connectivity.debugDump(indent + 1, out);
             for (AndroidDeviceHandle handle : handles.values())
                 {
                 handle.debugDump(indent + 1, out);
@@ -121,6 +185,7 @@ public class AndroidDevice extends ReentrantLockOwner
         String usbSerialNumber;
         String wifiDirectName;
         String inetSocketAddressLastConnected;
+        long msLastOpened;
 
         public PersistentState()
             {
@@ -131,6 +196,7 @@ public class AndroidDevice extends ReentrantLockOwner
             this.usbSerialNumber = androidDevice.usbSerialNumber;
             this.wifiDirectName = androidDevice.wifiDirectName;
             this.inetSocketAddressLastConnected = IpUtil.toString(androidDevice.inetSocketAddressLastConnected);
+            this.msLastOpened = androidDevice.msLastOpened;
             }
         }
 
@@ -143,6 +209,7 @@ public class AndroidDevice extends ReentrantLockOwner
         {
         assert this.usbSerialNumber.equals(persistentState.usbSerialNumber);
         this.inetSocketAddressLastConnected = IpUtil.parseInetSocketAddress(persistentState.inetSocketAddressLastConnected);
+        this.msLastOpened = persistentState.msLastOpened;
         updateWifiDirectName(persistentState.wifiDirectName);
         }
 
@@ -165,6 +232,18 @@ public class AndroidDevice extends ReentrantLockOwner
         return database;
         }
 
+    /** How ADB can reach him, and how that's changed; subscribe there to hear of changes */
+    public ConnectivityStateMachine getConnectivity()
+        {
+        return connectivity;
+        }
+
+    /** When we were last opened, in wall-clock ms; zero if never */
+    public long getLastOpened()
+        {
+        return msLastOpened;
+        }
+
     public boolean isOpen()
         {
         return lockWhile(() -> !handles.isEmpty());
@@ -209,6 +288,19 @@ public class AndroidDevice extends ReentrantLockOwner
                 : String.format(Locale.ROOT, "%s(%s)", wifiDirectName, usbSerialNumber);
         }
 
+    public void noteLearnedAddress(InetSocketAddress inetSocketAddress)
+        {
+        lockWhile(() ->
+            {
+            learnedAddresses.remove(inetSocketAddress);
+            learnedAddresses.add(inetSocketAddress);
+            while (learnedAddresses.size() > Configuration.learnedAddressCapacity)
+                {
+                learnedAddresses.remove(learnedAddresses.iterator().next());
+                }
+            });
+        }
+
     public void updateWifiDirectName(@Nullable String wifiDirectName)
         {
         if (StringUtil.notNullOrEmpty(wifiDirectName))
@@ -221,55 +313,46 @@ public class AndroidDevice extends ReentrantLockOwner
     // Mapping over handles
     //----------------------------------------------------------------------------------------------
 
+    // We hold our lock only long enough to see which handles we have: the functions we're given
+    // may well talk to the device, which can take seconds.
+
     protected boolean predicateOverHandles(Predicate<AndroidDeviceHandle> predicate)
         {
-        return lockWhile(() ->
+        for (AndroidDeviceHandle handle : getOpenHandles())
             {
-            for (AndroidDeviceHandle handle : handles.values())
+            if (predicate.test(handle))
                 {
-                if (predicate.test(handle))
-                    {
-                    return true;
-                    }
+                return true;
                 }
-            return false;
-            });
+            }
+        return false;
         }
 
     protected <T> T getDeviceProperty(Function<AndroidDeviceHandle, T> function)
         {
-        return lockWhile(() ->
+        for (AndroidDeviceHandle handle : getOpenHandles())
             {
-            for (AndroidDeviceHandle handle : handles.values())
+            T t = function.apply(handle);
+            if (t != null)
                 {
-                T t = function.apply(handle);
-                if (t != null)
-                    {
-                    return t;
-                    }
+                return t;
                 }
-            return null;
-            });
+            }
+        return null;
         }
 
     protected <T> T anyHandle(Function<AndroidDeviceHandle, T> function)
         {
-        return lockWhile(() ->
+        // For robustness: try USB handles first
+        AndroidDeviceHandle chosen = null;
+        for (AndroidDeviceHandle handle : getOpenHandles())
             {
-            // For robustness: try USB handles first
-            for (AndroidDeviceHandle handle : handles.values())
+            if (chosen == null || (handle.isUSB() && !chosen.isUSB()))
                 {
-                if (handle.isUSB())
-                    {
-                    return function.apply(handle);
-                    }
+                chosen = handle;
                 }
-            for (AndroidDeviceHandle handle : handles.values())
-                {
-                return function.apply(handle);
-                }
-            return null;
-            });
+            }
+        return chosen == null ? null : function.apply(chosen);
         }
 
     protected boolean anyHandleBool(Function<AndroidDeviceHandle, Boolean> function)
@@ -291,60 +374,59 @@ public class AndroidDevice extends ReentrantLockOwner
         }
 
     /** Called with the database handles lock NOT held. So: devices can come and go
-     * while we're in here. Be careful! */
+     * while we're in here. Be careful! The device commands we issue along the way are
+     * abandoned once {@link Configuration#msTcpipConnectivityRefreshDeadline} has passed,
+     * or once the caller's own token (if any) is cancelled. */
     public boolean refreshTcpipConnectivity(String reason) throws InterruptedException
         {
-        boolean tcpConnected = lockWhile(this::isOpenUsingTcpip);
+        CancellationToken token = CancellationToken.current().withDeadline(Configuration.msTcpipConnectivityRefreshDeadline, TimeUnit.MILLISECONDS);
+        try (CancellationToken.Scope ignored = token.enter())
+            {
+            return refreshTcpipConnectivityNow(reason);
+            }
+        finally
+            {
+            token.cancel();     // whatever's left of the pipeline is of no further use
+            }
+        }
+
+    protected boolean refreshTcpipConnectivityNow(String reason) throws InterruptedException
+        {
+        boolean tcpConnected = isOpenUsingTcpip();
         if (!tcpConnected)
             {
             // ADB doesn't already have a TCPIP connection for him. We'll try to make one if we can.
             //
             EventLog.dd(TAG, "refreshTcpipConnectivity(%s)", reason);
-
-            if (!tcpConnected)
+            checkInterrupt();
+
+            CompletableFuture<ConnectivityPipeline.Result> pipeline = new ConnectivityPipeline(this, reason).run();
+            try {
+                // The pipeline heeds our token, but should some stage be stuck where it can't,
+                // we still mustn't wait past our deadline
+                long msWait = CancellationToken.current().msRemaining(Configuration.msTcpipConnectivityRefreshDeadline);
+                ConnectivityPipeline.Result result = pipeline.get(msWait, TimeUnit.MILLISECONDS);
+                lockWhile(() -> lastConnectivityResult = result);
+                tcpConnected = result.isConnected();
+                if (tcpConnected)
+                    connectivity.noteTcpConnected("connected");
+                else
+                    connectivity.noteConnectFailed("failed in " + result.failedStage);
+                }
+            catch (InterruptedException e)
                 {
-                checkInterrupt();
-
-                // Can we reach him over WifiDirect? If so, use that
-                boolean tryWifiDirect = lockWhile(() ->
-                    {
-                    if (!database.isWifiDirectIPAddressConnected())
-                        {
-                        if (IpUtil.isPingable(Configuration.WIFI_DIRECT_GROUP_OWNER_ADDRESS))
-                            {
-                            if (isWifiDirectGroupOwner())
-                                {
-                                return true;
-                                }
-                            else
-                                EventLog.dd(TAG, "%s: not pingable at wifi direct group owner", getDebugDisplayName());
-                            }
-                        else
-                            EventLog.dd(TAG, "%s: not pingable at wifi direct group owner", getDebugDisplayName());
-                        }
-                    else
-                        EventLog.dd(TAG, "%s: wifi direct in use", getDebugDisplayName());
-                    return false;
-                    });
-
-                if (tryWifiDirect)
-                    {
-                    checkInterrupt();
-                    tcpConnected = listenAndConnect(Configuration.WIFI_DIRECT_GROUP_OWNER_ADDRESS, Configuration.ADB_DAEMON_PORT);
-                    }
+                pipeline.cancel(true);
+                throw e;
                 }
-
-            if (!tcpConnected)
+            catch (ExecutionException e)
                 {
-                checkInterrupt();
-
-                // Is he on some other (infrastructure) wifi network that we can reach him through?
-                InetAddress inetAddress = getWlanAddress();
-                if (inetAddress != null && IpUtil.isPingable(inetAddress))
-                    {
-                    checkInterrupt();
-                    tcpConnected = listenAndConnect(inetAddress, Configuration.ADB_DAEMON_PORT);
-                    }
+                throw new RuntimeException("internal error: connectivity pipeline", e.getCause());   // run() handles all
+                }
+            catch (TimeoutException e)
+                {
+                pipeline.cancel(true);
+                EventLog.dd(TAG, "%s: connectivity pipeline timed out", getDebugDisplayName());
+                connectivity.noteConnectFailed("timed out");
                 }
 
             if (!tcpConnected)
@@ -356,45 +438,108 @@ public class AndroidDevice extends ReentrantLockOwner
         return tcpConnected;
         }
 
-    protected boolean listenAndConnect(InetAddress inetAddress, int port)
+    /** Returns the addresses at which we might reach him, most preferred first */
+    protected List<InetSocketAddress> getCandidateAddresses()
         {
-        boolean result = false;
-        InetSocketAddress inetSocketAddress = new InetSocketAddress(inetAddress, port);
-        if (listenOnTcpip() && adbConnect(inetSocketAddress))
+        LinkedHashSet<InetSocketAddress> result = new LinkedHashSet<>();
+        InetSocketAddress wifiDirectAddress = new InetSocketAddress(Configuration.WIFI_DIRECT_GROUP_OWNER_ADDRESS, Configuration.ADB_DAEMON_PORT);
+
+        // Can we reach him over WifiDirect? If so, prefer that. We hold no lock of our own while
+        // we find out, as that involves both the database and asking the device.
+        boolean tryWifiDirect = false;
+        if (!database.isWifiDirectIPAddressConnected())
             {
-            result = true;
-            EventLog.dd(this, "tcpip-connected to %s at %s", getDebugDisplayName(), IpUtil.toString(inetSocketAddress));
+            if (isWifiDirectGroupOwner())
+                tryWifiDirect = true;
+            else
+                EventLog.dd(TAG, "%s: not wifi direct group owner", getDebugDisplayName());
             }
-        return result;
-    }
+        else
+            EventLog.dd(TAG, "%s: wifi direct in use", getDebugDisplayName());
+        if (tryWifiDirect)
+            {
+            result.add(wifiDirectAddress);
+            }
+
+        // Is he on some other (infrastructure) wifi network that we can reach him through?
+        InetAddress inetAddress = getWlanAddress();
+        if (inetAddress != null)
+            {
+            result.add(new InetSocketAddress(inetAddress, Configuration.ADB_DAEMON_PORT));
+            }
+
+        // Failing that, wherever we've found him before
+        lockWhile(() ->
+            {
+            if (inetSocketAddressLastConnected != null)
+                {
+                result.add(inetSocketAddressLastConnected);
+                }
+            result.addAll(learnedAddresses);
+            });
+
+        if (!tryWifiDirect)
+            {
+            result.remove(wifiDirectAddress);
+            }
+        return new ArrayList<>(result);
+        }
 
     public boolean adbConnect(InetSocketAddress inetSocketAddress)
         {
         return database.getHostAdb().connect(inetSocketAddress, Configuration.msAdbTimeoutSlow);
         }
 
+    /** For when the user asks for it, so it goes ahead of any other traffic to him */
     public boolean listenOnTcpip()
         {
-        boolean result = false;
+        DeviceCommandScheduler.Priority previous = DeviceCommandScheduler.setThreadPriority(DeviceCommandScheduler.Priority.INTERACTIVE);
+        try {
+            return listenOnTcpipAsync(null).get();
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            return false;
+            }
+        catch (ExecutionException|CancellationException e)
+            {
+            return false;
+            }
+        finally
+            {
+            DeviceCommandScheduler.setThreadPriority(previous);
+            }
+        }
+
+    /** Asks him to listen on TCPIP, should he not be already, then completes once he does (or we
+     * give up on him doing so). The asking is done on the calling thread, the waiting is not. If
+     * target is non-null, adbd answering there is taken as a sign that he's listening. */
+    public CompletableFuture<Boolean> listenOnTcpipAsync(@Nullable InetSocketAddress target)
+        {
         if (isListeningOnTcpip())
             {
-            result = true;
+            connectivity.noteListening(true);
+            return CompletableFuture.completedFuture(true);
             }
-        else
+        for (AndroidDeviceHandle handle : getOpenHandles())
             {
-            boolean listenRequested = anyHandleBool(AndroidDeviceHandle::listenOnTcpip);
-            if (listenRequested)
+            if (handle.listenOnTcpip())
                 {
-                boolean isListening = anyHandleBool((handle) ->
-                        handle.awaitListeningOnTcpip(Configuration.msAdbTimeoutSlow, TimeUnit.MILLISECONDS)
-                    );
-                if (isListening)
-                    {
-                    result = true;
-                    }
+                connectivity.noteListenRequested();
+                return handle.awaitListeningOnTcpipAsync(Configuration.ADB_DAEMON_PORT, target, Configuration.msAdbTimeoutSlow)
+                        .whenComplete((listening, throwable) -> connectivity.noteListening(Boolean.TRUE.equals(listening)));
                 }
             }
-        return result;
+        return CompletableFuture.completedFuture(false);
+        }
+
+    /** Completes the future with true when next we're opened over TCPIP. Waiters are
+     * forgotten once their future completes, however that comes about. */
+    public void whenOpenedUsingTcpip(CompletableFuture<Boolean> waiter)
+        {
+        tcpipOpenWaiters.add(waiter);
+        waiter.whenComplete((result, throwable) -> tcpipOpenWaiters.remove(waiter));
         }
 
     }
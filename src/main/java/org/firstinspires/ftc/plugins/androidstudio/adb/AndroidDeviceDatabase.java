@@ -2,25 +2,37 @@ package org.firstinspires.ftc.plugins.androidstudio.adb;
 
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.intellij.openapi.project.Project;
 import kotlin.Pair;
 import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.AdbDeviceTracker;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.CommandResultCache;
 import org.firstinspires.ftc.plugins.androidstudio.adb.commands.HostAdb;
+import org.firstinspires.ftc.plugins.androidstudio.util.CancellationToken;
 import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.FailureCache;
 import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
 import org.firstinspires.ftc.plugins.androidstudio.util.NetworkInterfaceMonitor;
+import org.firstinspires.ftc.plugins.androidstudio.util.ReachabilityService;
 import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
-import org.firstinspires.ftc.plugins.androidstudio.util.ThreadPool;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantLock;
@@ -51,8 +63,14 @@ public class AndroidDeviceDatabase
     protected final BridgeChangeListener bridgeChangeListener = new BridgeChangeListener();
     protected final NetworkInterfaceListener networkInterfaceListener = new NetworkInterfaceListener();
     protected final NetworkInterfaceMonitor networkInterfaceMonitor = new NetworkInterfaceMonitor(networkInterfaceListener);
+    protected final DeviceTrackerListener deviceTrackerListener = new DeviceTrackerListener();
+    protected final AdbDeviceTracker deviceTracker = new AdbDeviceTracker(deviceTrackerListener);
+    protected final AdbSubnetScanner subnetScanner = new AdbSubnetScanner(this);
+    protected final ThreadPoolExecutor refreshExecutor = newRefreshExecutor();
+    protected final KeepaliveMonitor keepaliveMonitor = new KeepaliveMonitor(this);
+    protected final ReconnectScheduler reconnectScheduler = new ReconnectScheduler(this);
 
-    protected AndroidDebugBridge currentBridge;
+    protected volatile AndroidDebugBridge currentBridge;
 
     protected final ReentrantLock deviceLock = new ReentrantLock();
     protected final ReentrantLock pendLock = new ReentrantLock();
@@ -64,6 +82,9 @@ public class AndroidDeviceDatabase
     /** keyed by (vanilla) serial number. 'concurrent' so we can delete while iterating */
     protected final Map<String, AndroidDeviceHandle> openedDeviceMap = new ConcurrentHashMap<>();
 
+    /** (vanilla) serial number -> USB serial number, so that repeated opens needn't ask again */
+    protected final Map<String, String> usbSerialNumbers = new ConcurrentHashMap<>();
+
     String usbSerialNumberLastConnected = null;
     InetSocketAddress inetSocketAddressLastConnected = null;
 
@@ -79,11 +100,32 @@ public class AndroidDeviceDatabase
         this.adbContext.addDeviceChangeListener(deviceChangeListener);
         this.adbContext.addBridgeChangeListener(bridgeChangeListener);
         networkInterfaceMonitor.start();
+        if (Configuration.useAdbDeviceTracker)
+            {
+            deviceTracker.start();
+            }
         }
 
     public void dispose()
         {
-        lockDevicesWhile(networkInterfaceMonitor::stop);
+        lockDevicesWhile(() ->
+            {
+            networkInterfaceMonitor.stop();
+            deviceTracker.stop();
+            subnetScanner.cancel();
+            refreshExecutor.shutdownNow();
+            keepaliveMonitor.stop();
+            reconnectScheduler.stop();
+            });
+        }
+
+    protected static ThreadPoolExecutor newRefreshExecutor()
+        {
+        int threads = Math.max(1, Configuration.deviceRefreshParallelism);
+        ThreadPoolExecutor result = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat(Configuration.PROJECT_NAME + "-refresh-%d").setDaemon(true).build());
+        result.allowCoreThreadTimeOut(true);
+        return result;
         }
 
     //----------------------------------------------------------------------------------------------
@@ -147,11 +189,20 @@ public class AndroidDeviceDatabase
             {
             StringUtil.appendLine(indent, out, "inetSocketAddressLastConnected=%s", IpUtil.toString(inetSocketAddressLastConnected));
             StringUtil.appendLine(indent, out, "usbSerialNumberLastConnected=%s", usbSerialNumberLastConnected);
+            StringUtil.appendLine(indent, out, "hostAdb: launches=%d coalesced=%d", hostAdb.getLaunchCount(), hostAdb.getCoalescedCount());
             StringUtil.appendLine(indent, out, "devices:");
             for (AndroidDevice device : deviceMap.values())
                 {
                 device.debugDump(indent + 1, out);
                 }
+            StringUtil.appendLine(indent, out, "unreachable:");
+            FailureCache.getInstance().debugDump(indent + 1, out);
+            StringUtil.appendLine(indent, out, "commands:");
+            CommandResultCache.getInstance().debugDump(indent + 1, out);
+            ReachabilityService.getInstance().debugDump(indent + 1, out);
+            StringUtil.appendLine(indent, out, "keepalive:");
+            keepaliveMonitor.debugDump(indent + 1, out);
+            reconnectScheduler.debugDump(indent, out);
             });
         }
 
@@ -164,6 +215,16 @@ public class AndroidDeviceDatabase
         return hostAdb;
         }
 
+    public KeepaliveMonitor getKeepaliveMonitor()
+        {
+        return keepaliveMonitor;
+        }
+
+    public ReconnectScheduler getReconnectScheduler()
+        {
+        return reconnectScheduler;
+        }
+
     //----------------------------------------------------------------------------------------------
     // Operations
     //----------------------------------------------------------------------------------------------
@@ -268,13 +329,20 @@ public class AndroidDeviceDatabase
 
 
     /** Must be idempotent, since we turn some of our 'device changed' notifications
-     * into 'device opened' */
+     * into 'device opened'. Asks the device for its USB serial number unless we already
+     * know it, so best not called with the device lock held. */
     public void open(IDevice device)
+        {
+        open(device, getUsbSerialNumber(device));
+        }
+
+    /** As above, but with the USB serial number already in hand */
+    protected void open(IDevice device, String usbSerialNumber)
         {
         AndroidDeviceHandle result = lockDevicesWhile(() ->
             {
-            AndroidDevice androidDevice = deviceMap.computeIfAbsent(getUsbSerialNumber(device),
-                    (usbSerialNumber) -> new AndroidDevice(AndroidDeviceDatabase.this, usbSerialNumber));
+            AndroidDevice androidDevice = deviceMap.computeIfAbsent(usbSerialNumber,
+                    (ignored) -> new AndroidDevice(AndroidDeviceDatabase.this, usbSerialNumber));
             AndroidDeviceHandle handle = androidDevice.open(device);
             if (handle != null)
                 {
@@ -285,13 +353,37 @@ public class AndroidDeviceDatabase
 
         if (result != null)
             {
-            try {
-                result.getAndroidDevice().refreshTcpipConnectivity("open");
-                }
-            catch (InterruptedException e)
+            // We're called with the device lock held, and the pipeline takes it on other
+            // threads, so we mustn't wait for it here. He's likely just been plugged in so as
+            // to go wireless, which the user will be waiting on. We may be running someone
+            // else's pending op, so we don't go by our thread's priority.
+            refreshTcpipConnectivityLater(result.getAndroidDevice(), "open", DeviceCommandScheduler.Priority.INTERACTIVE);
+            }
+        }
+
+    /** Refreshes the device's connectivity on one of our refresh threads, at the given priority */
+    protected void refreshTcpipConnectivityLater(AndroidDevice androidDevice, String reason, DeviceCommandScheduler.Priority priority)
+        {
+        try {
+            refreshExecutor.execute(() ->
                 {
-                Thread.currentThread().interrupt();
-                }
+                DeviceCommandScheduler.Priority previous = DeviceCommandScheduler.setThreadPriority(priority);
+                try {
+                    androidDevice.refreshTcpipConnectivity(reason);
+                    }
+                catch (InterruptedException e)
+                    {
+                    Thread.currentThread().interrupt();
+                    }
+                finally
+                    {
+                    DeviceCommandScheduler.setThreadPriority(previous);
+                    }
+                });
+            }
+        catch (RejectedExecutionException e)
+            {
+            EventLog.dd(TAG, "refreshTcpipConnectivityLater(%s): shutting down; ignored", reason);
             }
         }
 
@@ -308,6 +400,7 @@ public class AndroidDeviceDatabase
                 handle.close();
                 openedDeviceMap.remove(device.getSerialNumber());
                 }
+            usbSerialNumbers.remove(device.getSerialNumber());
             });
         }
 
@@ -327,34 +420,127 @@ public class AndroidDeviceDatabase
     // TCPIP management
     //----------------------------------------------------------------------------------------------
 
+    /** What became of one device in {@link #refreshTcpipConnectivity(String)} */
+    protected static class RefreshOutcome
+        {
+        final AndroidDevice androidDevice;
+        final boolean connected;
+        final long msElapsed;
+        final @Nullable Throwable failure;
+
+        RefreshOutcome(AndroidDevice androidDevice, boolean connected, long msElapsed, @Nullable Throwable failure)
+            {
+            this.androidDevice = androidDevice;
+            this.connected = connected;
+            this.msElapsed = msElapsed;
+            this.failure = failure;
+            }
+
+        @Override public String toString()
+            {
+            return String.format(Locale.ROOT, "%s: %s in %dms", androidDevice.getDebugDisplayName(),
+                    failure != null ? "failed(" + failure + ")" : connected ? "connected" : "not connected", msElapsed);
+            }
+        }
+
+    /**
+     * Refreshes all the devices we know of at once (well, {@link Configuration#deviceRefreshParallelism}
+     * of them at a time), those most recently opened first, as they're the ones most likely to
+     * be wanted. The lot of them get {@link Configuration#msDeviceRefreshDeadline}, after which
+     * those still going are abandoned.
+     *
+     * @return whether all of the devices are connected over TCPIP
+     */
     protected boolean refreshTcpipConnectivity(String reason) throws InterruptedException
         {
-        Collection<AndroidDevice> devices = lockDevicesWhile(deviceMap::values);
-        boolean allConnected = true;
+        List<AndroidDevice> devices = lockDevicesWhile(() -> new ArrayList<>(deviceMap.values()));
+        devices.sort(Comparator.comparingLong(AndroidDevice::getLastOpened).reversed());
+
+        long nsStart = System.nanoTime();
+        CancellationToken token = CancellationToken.current().withDeadline(Configuration.msDeviceRefreshDeadline, TimeUnit.MILLISECONDS);
+        DeviceCommandScheduler.Priority priority = DeviceCommandScheduler.getThreadPriority();
+        CompletionService<RefreshOutcome> completionService = new ExecutorCompletionService<>(refreshExecutor);
+        List<Future<RefreshOutcome>> futures = new ArrayList<>();
         for (AndroidDevice androidDevice : devices)
             {
-            allConnected = androidDevice.refreshTcpipConnectivity(reason) && allConnected;
+            futures.add(completionService.submit(() -> refreshTcpipConnectivity(androidDevice, reason, token, priority)));
+            }
+
+        boolean allConnected = true;
+        try {
+            for (int i = 0; i < futures.size(); i++)
+                {
+                Future<RefreshOutcome> future = completionService.poll(Math.max(0, token.msRemaining(Long.MAX_VALUE)), TimeUnit.MILLISECONDS);
+                if (future == null)
+                    {
+                    EventLog.dd(TAG, "refresh(%s): deadline passed with %d of %d devices outstanding", reason, futures.size() - i, futures.size());
+                    allConnected = false;
+                    break;
+                    }
+                RefreshOutcome outcome = future.get();
+                EventLog.dd(TAG, "refresh(%s): %s", reason, outcome);
+                allConnected = outcome.connected && allConnected;
+                }
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("internal error: refresh", e.getCause());   // refreshTcpipConnectivity(AndroidDevice...) catches all
+            }
+        finally
+            {
+            for (Future<RefreshOutcome> future : futures)
+                {
+                future.cancel(true);
+                }
             }
+
+        EventLog.dd(TAG, "refresh(%s): %d devices in %dms: allConnected=%s", reason, devices.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nsStart), allConnected);
         return allConnected;
         }
 
+    protected RefreshOutcome refreshTcpipConnectivity(AndroidDevice androidDevice, String reason, CancellationToken token, DeviceCommandScheduler.Priority priority)
+        {
+        long nsStart = System.nanoTime();
+        DeviceCommandScheduler.Priority previous = DeviceCommandScheduler.setThreadPriority(priority);
+        try (CancellationToken.Scope ignored = token.enter())
+            {
+            boolean connected = !token.isCancelled() && androidDevice.refreshTcpipConnectivity(reason);
+            return new RefreshOutcome(androidDevice, connected, msSince(nsStart), null);
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            return new RefreshOutcome(androidDevice, false, msSince(nsStart), e);
+            }
+        catch (RuntimeException e)
+            {
+            return new RefreshOutcome(androidDevice, false, msSince(nsStart), e);
+            }
+        finally
+            {
+            DeviceCommandScheduler.setThreadPriority(previous);
+            }
+        }
+
+    protected static long msSince(long nsStart)
+        {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nsStart);
+        }
+
     protected void reconnectLastTcpipConnected()
         {
         InetSocketAddress inetSocketAddress = this.inetSocketAddressLastConnected;
         EventLog.dd(TAG, "reconnectLastTcpipConnected() addr=%s", IpUtil.toString(inetSocketAddress));
         if (inetSocketAddress != null)
             {
-            // 'connect' can take very long time, so use a worker
-            ThreadPool.getDefault().execute(() ->
-                {
-                // Attempt to connect to this most recent fellow. Now, if we successfully connect,
-                // then it *may* be the case that it's not the same guy if the IP address in question
-                // was somehow reassigned (which can only happen on an infrastructure network).
-                //
-                // That might be unexpected, but is probably benign. We ignore for now
-                //
-                getHostAdb().connect(inetSocketAddress);
-                });
+            // Attempt to connect to this most recent fellow. Now, if we successfully connect,
+            // then it *may* be the case that it's not the same guy if the IP address in question
+            // was somehow reassigned (which can only happen on an infrastructure network).
+            //
+            // That might be unexpected, but is probably benign. We ignore for now. 'connect' can
+            // take very long time, so we don't wait around for it.
+            //
+            reconnectScheduler.reconnect(inetSocketAddress, "bridge changed");
             }
         }
 
@@ -371,26 +557,48 @@ public class AndroidDeviceDatabase
     // Utility
     //----------------------------------------------------------------------------------------------
 
-    /** Do we have a currently-connected device that lives at the Wifi-Direct group owner address? */
+    /** Do we have a currently-connected device that lives at the Wifi-Direct group owner address?
+     * Doesn't take the device lock, so may be asked from any thread (the connectivity pipeline in particular). */
     public boolean isWifiDirectIPAddressConnected()
         {
-        return lockDevicesWhile(() -> {
-            for (AndroidDeviceHandle handle : openedDeviceMap.values())
+        for (AndroidDeviceHandle handle : openedDeviceMap.values())
+            {
+            InetSocketAddress inetSocketAddress = handle.getInetSocketAddress();
+            if (inetSocketAddress!=null && inetSocketAddress.getAddress().equals(Configuration.WIFI_DIRECT_GROUP_OWNER_ADDRESS))
                 {
-                InetSocketAddress inetSocketAddress = handle.getInetSocketAddress();
-                if (inetSocketAddress!=null && inetSocketAddress.getAddress().equals(Configuration.WIFI_DIRECT_GROUP_OWNER_ADDRESS))
-                    {
-                    return true;
-                    }
+                return true;
                 }
-            return false;
-            });
+            }
+        return false;
+        }
+
+    /** Do we have a currently-connected device at this address? Doesn't take the device lock */
+    public boolean isConnectedAt(InetSocketAddress inetSocketAddress)
+        {
+        for (AndroidDeviceHandle handle : openedDeviceMap.values())
+            {
+            if (inetSocketAddress.equals(handle.getInetSocketAddress()))
+                {
+                return true;
+                }
+            }
+        return false;
         }
 
     protected String getUsbSerialNumber(IDevice device)
         {
+        String result = usbSerialNumbers.get(device.getSerialNumber());
+        if (result != null)
+            {
+            return result;
+            }
         try {
-            return device.getSystemProperty(PROP_USB_SERIAL_NUMBER).get(Configuration.msAdbTimeoutFast, TimeUnit.MILLISECONDS);
+            result = device.getSystemProperty(PROP_USB_SERIAL_NUMBER).get(Configuration.msAdbTimeoutFast, TimeUnit.MILLISECONDS);
+            if (result != null)
+                {
+                usbSerialNumbers.put(device.getSerialNumber(), result);
+                }
+            return result;
             }
         catch (InterruptedException e)
             {
@@ -417,28 +625,20 @@ public class AndroidDeviceDatabase
             {
             EventLog.dd(TAG, "more network interfaces: refreshing tcpip connectivity");
 
+            // What wasn't reachable before may well be now
+            FailureCache.getInstance().clearAll();
+
+            // Look for devices whose addresses we don't yet know
+            if (Configuration.useSubnetScan)
+                {
+                subnetScanner.scan(networkInterfaceMonitor.getUpInterfacesSnapshot());
+                }
+
             /** Especially when a robot controller network interface is connected to by a desktop
              * for the very first time, it can take a very long time from when we get notified
              * that the interface is 'up' to when we can actually reach the robot controller.
              * Annoying, but true. So, we try a few times. */
-            ThreadPool.getDefault().execute(() ->
-                {
-                try {
-                    if (!refreshTcpipConnectivity("intf up #1"))
-                        {
-                        Thread.sleep(Configuration.msTcpipConnectivityRefreshInterval);
-                        if (!refreshTcpipConnectivity("intf up #2"))
-                            {
-                            Thread.sleep(Configuration.msTcpipConnectivityRefreshInterval);
-                            refreshTcpipConnectivity("intf up #3");
-                            }
-                        }
-                    }
-                catch (InterruptedException e)
-                    {
-                    Thread.currentThread().interrupt();
-                    }
-                });
+            reconnectScheduler.refreshNetwork("intf up");
             }
 
         @Override public void onNetworkInterfacesDown()
@@ -447,6 +647,46 @@ public class AndroidDeviceDatabase
             }
         }
 
+    protected class DeviceTrackerListener implements AdbDeviceTracker.Callback
+        {
+        /** ddmlib may not have caught up with the server yet. If not, it'll tell us about the
+         * device itself when it does. */
+        @Override public void onDeviceOpened(AdbDeviceTracker.TrackedDevice trackedDevice)
+            {
+            IDevice device = findBridgeDevice(trackedDevice.serialNumber);
+            if (device != null && device.isOnline())
+                {
+                openOrPend(device);
+                }
+            }
+
+        @Override public void onDeviceClosed(AdbDeviceTracker.TrackedDevice trackedDevice)
+            {
+            usbSerialNumbers.remove(trackedDevice.serialNumber);
+            AndroidDeviceHandle handle = openedDeviceMap.get(trackedDevice.serialNumber);
+            if (handle != null)
+                {
+                closeOrPend(handle.getDevice());
+                }
+            }
+
+        protected @Nullable IDevice findBridgeDevice(String serialNumber)
+            {
+            AndroidDebugBridge bridge = currentBridge;
+            if (bridge != null)
+                {
+                for (IDevice device : bridge.getDevices())
+                    {
+                    if (device.getSerialNumber().equals(serialNumber))
+                        {
+                        return device;
+                        }
+                    }
+                }
+            return null;
+            }
+        }
+
     protected class BridgeChangeListener implements AndroidDebugBridge.IDebugBridgeChangeListener
         {
         /** We get called both for creations and disconnects. The situations in which bridge
@@ -494,6 +734,18 @@ public class AndroidDeviceDatabase
         @Override
         public void deviceChanged(IDevice device, int changeMask)
             {
+            if ((changeMask & (IDevice.CHANGE_BUILD_INFO | IDevice.CHANGE_STATE)) != 0)
+                {
+                AndroidDeviceHandle handle = openedDeviceMap.get(device.getSerialNumber());
+                if (handle != null)
+                    {
+                    handle.invalidateProperties();
+                    if ((changeMask & IDevice.CHANGE_BUILD_INFO) != 0)
+                        {
+                        CommandResultCache.getInstance().invalidate(handle.getAndroidDevice().getUsbSerialNumber());
+                        }
+                    }
+                }
             if (device.isOnline())
                 {
                 openOrPend(device);
@@ -505,10 +757,12 @@ public class AndroidDeviceDatabase
             }
         }
 
-    // Be smart to avoid deadlocks
+    // Be smart to avoid deadlocks. Getting the USB serial number can mean a round trip to the
+    // device, so we do that first, with no lock held.
     protected void openOrPend(IDevice device)
         {
-        lockAndRunOrPend(String.format(Locale.ROOT,"open(%s)", device.getSerialNumber()), () -> open(device));
+        String usbSerialNumber = getUsbSerialNumber(device);
+        lockAndRunOrPend(String.format(Locale.ROOT,"open(%s)", device.getSerialNumber()), () -> open(device, usbSerialNumber));
         }
 
     // Be smart to avoid deadlocks
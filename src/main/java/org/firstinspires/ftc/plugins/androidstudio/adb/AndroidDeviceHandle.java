@@ -2,9 +2,15 @@ package org.firstinspires.ftc.plugins.androidstudio.adb;
 
 import com.android.ddmlib.IDevice;
 import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.AdbShellCommand;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.CompositeShellCommand;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.EchoCommand;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.GetPropCommand;
 import org.firstinspires.ftc.plugins.androidstudio.adb.commands.GetSettingCommand;
-import org.firstinspires.ftc.plugins.androidstudio.adb.commands.IfConfigCommand;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.NetworkInterfacesCommand;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.ShellSession;
 import org.firstinspires.ftc.plugins.androidstudio.util.AdbCommunicationException;
+import org.firstinspires.ftc.plugins.androidstudio.util.CancellationToken;
 import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
 import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
 import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
@@ -14,7 +20,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -32,11 +39,36 @@ public class AndroidDeviceHandle
 
     public static final String TAG = "AndroidDeviceHandle";
 
-    public static final Pattern patternIpAddress        = Pattern.compile("[0-9]{1,3}\\.*[0-9]{1,3}\\.*[0-9]{1,3}\\.*[0-9]{1,3}");
-    public static final Pattern patternIpAddressAndPort = Pattern.compile("[0-9]{1,3}\\.*[0-9]{1,3}\\.*[0-9]{1,3}\\.*[0-9]{1,3}:[0-9]{1,5}");
+    public static final Pattern patternIpAddress = Pattern.compile("[0-9]{1,3}\\.*[0-9]{1,3}\\.*[0-9]{1,3}\\.*[0-9]{1,3}");
 
     protected final IDevice device;
     protected final AndroidDevice androidDevice;
+    protected final TransportIdentity transport;
+    protected final @Nullable ShellSession shellSession;
+    protected final PropertySnapshot properties = new PropertySnapshot(this);
+    protected final DeviceCommandScheduler scheduler;
+    protected final CancellationToken lifetime = CancellationToken.create();   // cancelled when we close
+    protected volatile @Nullable Facts facts = null;
+    protected volatile @Nullable NetworkInterfacesCommand.Table networkInterfaces = null;
+    protected volatile long nsNetworkInterfaces = 0;
+
+    /** What we learn of the device in one go by {@link #refreshFacts()}, other than its
+     * properties and network interfaces */
+    public static class Facts
+        {
+        public final long nsTaken = System.nanoTime();
+        public final @Nullable String wifiDirectName;
+
+        public Facts(@Nullable String wifiDirectName)
+            {
+            this.wifiDirectName = wifiDirectName;
+            }
+
+        public boolean isRecent()
+            {
+            return System.nanoTime() - nsTaken < Configuration.msHandleFactsFresh * 1000000L;
+            }
+        }
 
     //----------------------------------------------------------------------------------------------
     // Construction
@@ -47,17 +79,31 @@ public class AndroidDeviceHandle
         EventLog.dd(TAG, "open(id=%s at=%s)", androidDevice.getDebugDisplayName(), device.getSerialNumber());
         this.device = device;
         this.androidDevice = androidDevice;
+        this.transport = TransportIdentity.of(device.getSerialNumber(), device.isEmulator());
+        this.scheduler = new DeviceCommandScheduler(device.getSerialNumber());
+        this.shellSession = Configuration.useShellSession
+                ? new ShellSession(device.getSerialNumber(), androidDevice.getDatabase().getHostAdb().getHostProtocol().getServerAddress())
+                : null;
         }
 
     public void close()
         {
         EventLog.dd(TAG, "close(id=%s at=%s)", androidDevice.getDebugDisplayName(), device.getSerialNumber());
+        lifetime.cancel();     // abandon whatever commands are still in flight
+        scheduler.close();
+        if (shellSession != null) shellSession.close();
         androidDevice.close(this);
         }
 
     public void debugDump(int indent, PrintStream out)
         {
-        StringUtil.appendLine(indent, out, "handle=%s", getSerialNumber());
+        StringUtil.appendLine(indent, out, "handle=%s", transport);
+        properties.debugDump(indent + 1, out);
+        scheduler.debugDump(indent + 1, out);
+        if (shellSession != null)
+            {
+            StringUtil.appendLine(indent + 1, out, "shell: commands=%d opens=%d", shellSession.getCommandCount(), shellSession.getOpenCount());
+            }
         }
 
     //----------------------------------------------------------------------------------------------
@@ -134,11 +180,16 @@ public class AndroidDeviceHandle
      * IP network, then return the address used on same*/
     public @Nullable InetAddress getWlanAddress()
         {
+        NetworkInterfacesCommand.Table table = getNetworkInterfaces();
+        NetworkInterfacesCommand.Interface wlan = table == null ? null : table.get("wlan0");
+        if (wlan != null && wlan.isUp() && wlan.getInet4Address() != null)
+            {
+            return wlan.getInet4Address();
+            }
         try {
-            String value = getStringProperty(Configuration.PROP_WLAN_IP_ADDRESS, null);
-            return value == null ? null : InetAddress.getByName(value);
+            return IpUtil.parseInetAddress(getStringProperty(Configuration.PROP_WLAN_IP_ADDRESS, null));
             }
-        catch (UnknownHostException e)
+        catch (IllegalArgumentException e)
             {
             return null;
             }
@@ -155,53 +206,95 @@ public class AndroidDeviceHandle
         return device.getSerialNumber();
         }
 
+    public TransportIdentity getTransport()
+        {
+        return transport;
+        }
+
     public boolean isEmulator()
         {
-        return device.isEmulator();
+        return transport.isEmulator();
         }
     public boolean isTcpip()
         {
-        return patternIpAddressAndPort.matcher(getSerialNumber()).matches();
+        return transport.isTcpip();
         }
     public boolean isUSB()
         {
-        return !isTcpip() && !isEmulator();
+        return transport.isUSB();
         }
 
     public @Nullable InetSocketAddress getInetSocketAddress()
         {
-        if (isTcpip())
+        return transport.inetSocketAddress;
+        }
+
+    public boolean isWifiDirectGroupOwner()
+        {
+        NetworkInterfacesCommand.Table table = getNetworkInterfaces();
+        NetworkInterfacesCommand.Interface p2p = table == null ? null : table.get("p2p0");
+        return p2p != null && p2p.isUp() && p2p.hasAddress(Configuration.WIFI_DIRECT_GROUP_OWNER_ADDRESS);
+        }
+
+    /** Returns the device's network interfaces, as recently as {@link Configuration#msNetworkInterfacesTtl},
+     * or null if they couldn't be retrieved */
+    public @Nullable NetworkInterfacesCommand.Table getNetworkInterfaces()
+        {
+        NetworkInterfacesCommand.Table result = networkInterfaces;
+        if (result == null || System.nanoTime() - nsNetworkInterfaces >= Configuration.msNetworkInterfacesTtl * 1000000L)
             {
-            return IpUtil.parseInetSocketAddress(getSerialNumber());
+            try {
+                NetworkInterfacesCommand command = prepare(new NetworkInterfacesCommand(device));
+                command.execute();
+                result = noteNetworkInterfaces(command.getTable());
+                }
+            catch (AdbCommunicationException e)
+                {
+                EventLog.ee(TAG, "getNetworkInterfaces() failed: %s; ignored: %s: %s", getSerialNumber(), e.getMessage(), e.getCause().getMessage());
+                }
             }
-        return null;
+        return result;
         }
 
-    public boolean isWifiDirectGroupOwner()
+    protected NetworkInterfacesCommand.Table noteNetworkInterfaces(NetworkInterfacesCommand.Table table)
         {
+        nsNetworkInterfaces = System.nanoTime();
+        networkInterfaces = table;
+        return table;
+        }
+
+    public String getWifiDirectName()
+        {
+        Facts facts = getRecentFacts();
+        if (facts != null)
+            {
+            return facts.wifiDirectName;
+            }
         try {
-            IfConfigCommand command = new IfConfigCommand(device, "p2p0");
+            GetSettingCommand command = prepare(new GetSettingCommand(device, GetSettingCommand.Namespace.GLOBAL, Configuration.SETTING_WIFI_P2P_DEVICE_NAME));
             command.execute();
-            return Configuration.WIFI_DIRECT_GROUP_OWNER_ADDRESS.equals(command.getInetAddress()) && command.isUp();
+            return command.getResult();
             }
         catch (AdbCommunicationException e)
             {
-            EventLog.ee(TAG, "isWifiDirectGroupOwner() failed: %s; ignored: %s: %s", getUsbSerialNumber(), e.getMessage(), e.getCause().getMessage());
-            return false;
+            EventLog.ee(TAG, "getWifiDirectName() failed: %s; ignored: %s: %s", getUsbSerialNumber(), e.getMessage(), e.getCause().getMessage());
+            return null;
             }
         }
 
-    public String getWifiDirectName()
+    /** Does his shell answer us? Any failure to find out counts as no. */
+    public boolean isResponsive()
         {
+        String token = "alive-" + Long.toHexString(System.nanoTime());
         try {
-            GetSettingCommand command = new GetSettingCommand(device, GetSettingCommand.Namespace.GLOBAL, Configuration.SETTING_WIFI_P2P_DEVICE_NAME);
+            EchoCommand command = prepare(new EchoCommand(device, token));
             command.execute();
-            return command.getResult();
+            return command.isEchoed();
             }
         catch (AdbCommunicationException e)
             {
-            EventLog.ee(TAG, "getWifiDirectName() failed: %s; ignored: %s: %s", getUsbSerialNumber(), e.getMessage(), e.getCause().getMessage());
-            return null;
+            EventLog.dd(TAG, "isResponsive(%s): %s", getSerialNumber(), e.getMessage());
+            return false;
             }
         }
 
@@ -212,7 +305,7 @@ public class AndroidDeviceHandle
         }
     public boolean isListeningOnTcpip(int port)
         {
-        return Integer.toString(port).equals(getStringProperty(Configuration.PROP_ADB_TCP_PORT));
+        return Integer.toString(port).equals(getStringProperty(Configuration.PROP_ADB_TCP_PORT, true));
         }
     public boolean listenOnTcpip()
         {
@@ -220,6 +313,7 @@ public class AndroidDeviceHandle
         }
     public boolean listenOnTcpip(int port)
         {
+        facts = null;   // he'll be restarting adbd; what we knew of the port will be stale
         return androidDevice.getDatabase().getHostAdb().tcpip(device, port);
         }
     public boolean awaitListeningOnTcpip(long timeout, TimeUnit timeUnit)
@@ -228,46 +322,135 @@ public class AndroidDeviceHandle
         }
     public boolean awaitListeningOnTcpip(int port, long timeout, TimeUnit timeUnit)
         {
-        long deadline = nsNow() + timeUnit.toNanos(timeout);
-        while (nsNow() <= deadline)
+        CompletableFuture<Boolean> listening = awaitListeningOnTcpipAsync(port, null, timeUnit.toMillis(timeout));
+        try {
+            return listening.get();
+            }
+        catch (InterruptedException e)
             {
-            if (isListeningOnTcpip(port))
-                {
-                return true;
-                }
-            Thread.yield();
+            listening.cancel(false);
+            Thread.currentThread().interrupt();
+            return false;
+            }
+        catch (ExecutionException|CancellationException e)
+            {
+            return false;
             }
-        return false;
         }
-    protected long nsNow()
+
+    /** Completes with whether we began listening on the port within the timeout. If target
+     * is non-null, adbd answering there counts as listening too. See {@link ListenReadinessDetector}. */
+    public CompletableFuture<Boolean> awaitListeningOnTcpipAsync(int port, @Nullable InetSocketAddress target, long msTimeout)
         {
-        return System.nanoTime();
+        return new ListenReadinessDetector(this, port, target).start(msTimeout);
         }
 
     //----------------------------------------------------------------------------------------------
     // Low level accessing
     //----------------------------------------------------------------------------------------------
 
-    /** @return null if the property doesn't exist */
-    public @Nullable String getStringProperty(String property)
+    /** Readies a command to be executed against this handle, to be abandoned should the handle close.
+     * Cacheable answers are shared with the device's other handles. */
+    public <T extends AdbShellCommand> T prepare(T command)
         {
-        try
-            {
-            return device.getSystemProperty(property).get(Configuration.msAdbTimeoutFast, TimeUnit.MILLISECONDS);
-            }
-        catch (InterruptedException e)
-            {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("interrupt while retrieving property: " + property, e);
+        command.setShellSession(shellSession);
+        command.setScheduler(scheduler);
+        command.setCancellationToken(lifetime);
+        command.setResultCacheScope(androidDevice.getUsbSerialNumber());
+        return command;
+        }
+
+    /**
+     * Learns in a single round trip to the device everything we usually want to know when a
+     * handle opens: all the properties (the USB serial number, the WLAN address and status, and
+     * the TCPIP port amongst them), the WifiDirect name, and the state of the network interfaces.
+     * The properties and interfaces replace what we had of each; for a short while, the other
+     * accessors answer from what we learned.
+     *
+     * @return null if the device couldn't be queried
+     */
+    public @Nullable Facts refreshFacts()
+        {
+        GetPropCommand getProp = new GetPropCommand(device);
+        GetSettingCommand getName = new GetSettingCommand(device, GetSettingCommand.Namespace.GLOBAL, Configuration.SETTING_WIFI_P2P_DEVICE_NAME);
+        NetworkInterfacesCommand getInterfaces = new NetworkInterfacesCommand(device);
+        try {
+            prepare(new CompositeShellCommand(device, getProp, getName, getInterfaces)).execute();
+            properties.fill(getProp.getProperties());
+            noteNetworkInterfaces(getInterfaces.getTable());
+            Facts result = new Facts(getName.getResult());
+            facts = result;
+            return result;
             }
-        catch (ExecutionException e)
+        catch (AdbCommunicationException e)
             {
-            throw new RuntimeException("exception while retrieving property: " + property, e.getCause());
+            EventLog.ee(TAG, "refreshFacts() failed: %s; ignored: %s: %s", getSerialNumber(), e.getMessage(), e.getCause().getMessage());
+            return null;
             }
-        catch (TimeoutException e)
+        }
+
+    protected @Nullable Facts getRecentFacts()
+        {
+        Facts result = facts;
+        return result != null && result.isRecent() ? result : null;
+        }
+
+    /** @return null if the property doesn't exist */
+    public @Nullable String getStringProperty(String property)
+        {
+        return getStringProperty(property, false);
+        }
+
+    /** If fresh is true, the device is asked, rather than relying on our snapshot of his properties */
+    public @Nullable String getStringProperty(String property, boolean fresh)
+        {
+        return properties.get(property, fresh);
+        }
+
+    public DeviceCommandScheduler getScheduler()
+        {
+        return scheduler;
+        }
+
+    public PropertySnapshot getPropertySnapshot()
+        {
+        return properties;
+        }
+
+    /** Forgets what we know of the device's properties */
+    public void invalidateProperties()
+        {
+        properties.invalidate();
+        }
+
+    /** Asks the device afresh for the property; see {@link PropertySnapshot} */
+    protected @Nullable String readStringProperty(String property)
+        {
+        return scheduler.run(() ->
             {
-            throw new RuntimeException("timeout while retrieving property: " + property, e);
-            }
+            CancellationToken token = CancellationToken.anyOf(lifetime, CancellationToken.current());
+            try
+                {
+                if (token.isCancelled())
+                    {
+                    throw new RuntimeException("cancelled before retrieving property: " + property);
+                    }
+                return device.getSystemProperty(property).get(token.msRemaining(Configuration.msAdbTimeoutFast), TimeUnit.MILLISECONDS);
+                }
+            catch (InterruptedException e)
+                {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupt while retrieving property: " + property, e);
+                }
+            catch (ExecutionException e)
+                {
+                throw new RuntimeException("exception while retrieving property: " + property, e.getCause());
+                }
+            catch (TimeoutException e)
+                {
+                throw new RuntimeException("timeout while retrieving property: " + property, e);
+                }
+            });
         }
 
     public String getStringProperty(String property, String defaultValue)
@@ -0,0 +1,288 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.CancellationToken;
+import org.firstinspires.ftc.plugins.androidstudio.util.ConnectionRacer;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
+import org.firstinspires.ftc.plugins.androidstudio.util.ReachabilityService;
+import org.firstinspires.ftc.plugins.androidstudio.util.ThreadPool;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * {@link ConnectivityPipeline} tries to get ADB a TCPIP connection to an {@link AndroidDevice}
+ * that it's currently reaching only by USB. It proceeds in {@link Stage}s, each of which is
+ * asynchronous:
+ *
+ *      GATHER  learn the addresses at which he might be, and whether he's already listening
+ *      PROBE   race to find the first of those addresses that answers
+ *      LISTEN  have him listen on TCPIP, should he not be already, and wait till he does
+ *      CONNECT 'adb connect' to the address
+ *      VERIFY  check that adbd is indeed answering there
+ *
+ * Should any of the last four fail for the chosen address, we go round again with the
+ * candidates that remain. Nothing here holds any lock while talking to the device or the
+ * network: the device's state is read and written only in brief critical sections (see the
+ * accessors of {@link AndroidDevice}). The time spent in each stage is recorded in the {@link Result}.
+ *
+ * Work is done on pool threads, each of which carries the token and scheduling priority of
+ * whoever started the pipeline.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ConnectivityPipeline
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "ConnectivityPipeline";
+
+    public enum Stage { GATHER, PROBE, LISTEN, CONNECT, VERIFY }
+
+    public static class Result
+        {
+        /** null if we didn't connect */
+        public final @Nullable InetSocketAddress connectedAt;
+        /** The stage in which we last failed, if we did */
+        public final @Nullable Stage failedStage;
+        /** Total time spent in each stage, summed over all the candidates we tried */
+        public final Map<Stage, Long> msStages;
+        public final long msElapsed;
+
+        public Result(@Nullable InetSocketAddress connectedAt, @Nullable Stage failedStage, Map<Stage, Long> msStages, long msElapsed)
+            {
+            this.connectedAt = connectedAt;
+            this.failedStage = failedStage;
+            this.msStages = Collections.unmodifiableMap(msStages);
+            this.msElapsed = msElapsed;
+            }
+
+        public boolean isConnected()
+            {
+            return connectedAt != null;
+            }
+
+        @Override public String toString()
+            {
+            return String.format(Locale.ROOT, "%s in %dms %s",
+                    connectedAt != null ? "connected at " + IpUtil.toString(connectedAt) : "failed in " + failedStage, msElapsed, msStages);
+            }
+        }
+
+    /** What the GATHER stage learns */
+    protected static class Facts
+        {
+        final List<InetSocketAddress> candidates;
+        final boolean listening;
+
+        Facts(List<InetSocketAddress> candidates, boolean listening)
+            {
+            this.candidates = candidates;
+            this.listening = listening;
+            }
+        }
+
+    protected final AndroidDevice androidDevice;
+    protected final String reason;
+    protected final CancellationToken token;
+    protected final DeviceCommandScheduler.Priority priority;
+    protected final long nsStart = System.nanoTime();
+    protected final EnumMap<Stage, Long> msStages = new EnumMap<>(Stage.class);
+    protected volatile @Nullable Stage failedStage = null;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    /** The token and scheduling priority are taken from the calling thread */
+    public ConnectivityPipeline(AndroidDevice androidDevice, String reason)
+        {
+        this.androidDevice = androidDevice;
+        this.reason = reason;
+        this.token = CancellationToken.current();
+        this.priority = DeviceCommandScheduler.getThreadPriority();
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    public CompletableFuture<Result> run()
+        {
+        EventLog.dd(TAG, "%s: run(%s)", androidDevice.getDebugDisplayName(), reason);
+        return stage(Stage.GATHER, this::gather)
+                .thenCompose(facts -> attempt(new ArrayList<>(facts.candidates), facts.listening))
+                .handle((connectedAt, throwable) ->
+                    {
+                    if (throwable != null)
+                        {
+                        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                        EventLog.dd(TAG, "%s: %s failed: %s", androidDevice.getDebugDisplayName(), failedStage, cause.toString());
+                        connectedAt = null;
+                        }
+                    Result result = new Result(connectedAt, connectedAt == null ? failedStage : null, snapshotStages(), msSince(nsStart));
+                    EventLog.dd(TAG, "%s: %s", androidDevice.getDebugDisplayName(), result);
+                    return result;
+                    });
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Stages
+    //----------------------------------------------------------------------------------------------
+
+    protected Facts gather()
+        {
+        List<InetSocketAddress> candidates = androidDevice.getCandidateAddresses();
+        boolean listening = !candidates.isEmpty() && androidDevice.isListeningOnTcpip();
+        return new Facts(candidates, listening);
+        }
+
+    /** Tries the remaining candidates, returning where we connected, or null if nowhere */
+    protected CompletableFuture<InetSocketAddress> attempt(List<InetSocketAddress> candidates, boolean listening)
+        {
+        if (candidates.isEmpty() || token.isCancelled())
+            {
+            if (failedStage == null) failedStage = candidates.isEmpty() ? Stage.GATHER : Stage.PROBE;
+            return CompletableFuture.completedFuture(null);
+            }
+
+        return timed(Stage.PROBE, probe(candidates, listening)).thenCompose(race ->
+            {
+            EventLog.dd(TAG, "%s: reachability race: %s", androidDevice.getDebugDisplayName(), race);
+            if (race.winner == null)
+                {
+                failedStage = Stage.PROBE;
+                return CompletableFuture.completedFuture(null);
+                }
+            InetSocketAddress winner = race.winner;
+            candidates.remove(winner);
+            return connectTo(winner).thenCompose(connected -> connected
+                    ? CompletableFuture.completedFuture(winner)
+                    : attempt(candidates, listening));
+            });
+        }
+
+    protected CompletableFuture<ConnectionRacer.Result<InetSocketAddress>> probe(List<InetSocketAddress> candidates, boolean listening)
+        {
+        return new ConnectionRacer<>(candidates,
+                inetSocketAddress -> listening
+                    ? ReachabilityService.getInstance().isAdbListeningAsync(inetSocketAddress)
+                    : ReachabilityService.getInstance().isPingableAsync(inetSocketAddress.getAddress()),
+                Configuration.msConnectionRaceStagger).race();
+        }
+
+    /** Runs the LISTEN, CONNECT and VERIFY stages against the one address */
+    protected CompletableFuture<Boolean> connectTo(InetSocketAddress inetSocketAddress)
+        {
+        return stageAsync(Stage.LISTEN, () -> androidDevice.listenOnTcpipAsync(inetSocketAddress))
+            .thenCompose(listening ->
+                {
+                if (!listening)
+                    {
+                    failedStage = Stage.LISTEN;
+                    return CompletableFuture.completedFuture(false);
+                    }
+                androidDevice.getConnectivity().noteConnecting();
+                return timed(Stage.CONNECT, androidDevice.getDatabase().getHostAdb().connectAsync(inetSocketAddress, Configuration.msAdbTimeoutSlow))
+                    .thenCompose(connected ->
+                        {
+                        if (!connected)
+                            {
+                            failedStage = Stage.CONNECT;
+                            return CompletableFuture.completedFuture(false);
+                            }
+                        return timed(Stage.VERIFY, IpUtil.isAdbListeningAsync(inetSocketAddress)).thenApply(verified ->
+                            {
+                            if (verified)
+                                EventLog.dd(TAG, "tcpip-connected to %s at %s", androidDevice.getDebugDisplayName(), IpUtil.toString(inetSocketAddress));
+                            else
+                                failedStage = Stage.VERIFY;
+                            return verified;
+                            });
+                        });
+                });
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    /** Runs the work on a pool thread under our token and priority, timing it */
+    protected <T> CompletableFuture<T> stage(Stage stage, Supplier<T> work)
+        {
+        return stageAsync(stage, () -> CompletableFuture.completedFuture(work.get()));
+        }
+
+    /** As {@link #stage}, but the work itself yields a future, which we time until it completes */
+    protected <T> CompletableFuture<T> stageAsync(Stage stage, Supplier<CompletableFuture<T>> work)
+        {
+        long nsStageStart = System.nanoTime();
+        return CompletableFuture.supplyAsync(() ->
+            {
+            DeviceCommandScheduler.Priority previous = DeviceCommandScheduler.setThreadPriority(priority);
+            try (CancellationToken.Scope ignored = token.enter())
+                {
+                if (token.isCancelled())
+                    {
+                    throw new CancellationException(String.format(Locale.ROOT, "%s: cancelled before %s", androidDevice.getDebugDisplayName(), stage));
+                    }
+                return work.get();
+                }
+            finally
+                {
+                DeviceCommandScheduler.setThreadPriority(previous);
+                }
+            }, ThreadPool.getDefault())
+            .thenCompose(future -> future)
+            .whenComplete((result, throwable) ->
+                {
+                if (throwable != null) failedStage = stage;
+                noteDuration(stage, nsStageStart);
+                });
+        }
+
+    /** Times work that's already asynchronous */
+    protected <T> CompletableFuture<T> timed(Stage stage, CompletableFuture<T> future)
+        {
+        long nsStageStart = System.nanoTime();
+        return future.whenComplete((result, throwable) ->
+            {
+            if (throwable != null) failedStage = stage;
+            noteDuration(stage, nsStageStart);
+            });
+        }
+
+    protected void noteDuration(Stage stage, long nsStageStart)
+        {
+        synchronized (msStages)
+            {
+            msStages.merge(stage, msSince(nsStageStart), Long::sum);
+            }
+        }
+
+    protected Map<Stage, Long> snapshotStages()
+        {
+        synchronized (msStages)
+            {
+            return new EnumMap<>(msStages);
+            }
+        }
+
+    protected static long msSince(long nsStart)
+        {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nsStart);
+        }
+    }
@@ -0,0 +1,288 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.LatencyHistogram;
+import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
+import org.firstinspires.ftc.plugins.androidstudio.util.WeakReferenceSet;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ConnectivityStateMachine} tracks how ADB can reach an {@link AndroidDevice}:
+ *
+ *      ABSENT            no connection of any kind (only before he's first seen, or once he's gone)
+ *      USB_ONLY          attached by USB; no TCPIP connection, and none being made
+ *      LISTEN_REQUESTED  we've asked him to listen on TCPIP, and are waiting for him to do so
+ *      LISTENING         he's listening on TCPIP, but we're not connected
+ *      CONNECTING        we're 'adb connect'ing to him
+ *      TCP_CONNECTED     ADB has a TCPIP connection to him
+ *      TCP_LOST          ADB had a TCPIP connection to him, but it's gone
+ *      BACKOFF           our latest attempt to connect failed; we're waiting before trying again
+ *
+ * Each transition is timestamped, the latest few are kept for debugging, and any who have
+ * subscribed hear of each as it happens. From the transitions we measure how long it takes
+ * from a USB attach to a wireless connection, and from a dropped wireless connection back to
+ * another one.
+ *
+ * Listeners are held weakly (so hold on to them yourself). They're called without our state
+ * locked, one transition at a time, in the order in which the transitions happened.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ConnectivityStateMachine
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "ConnectivityState";
+
+    public enum State { ABSENT, USB_ONLY, LISTEN_REQUESTED, LISTENING, CONNECTING, TCP_CONNECTED, TCP_LOST, BACKOFF }
+
+    public static class Transition
+        {
+        public final State from;
+        public final State to;
+        public final String reason;
+        /** Wall-clock time of the transition */
+        public final long msAt;
+        /** How long we'd been in the from state */
+        public final long msInFrom;
+
+        public Transition(State from, State to, String reason, long msAt, long msInFrom)
+            {
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+            this.msAt = msAt;
+            this.msInFrom = msInFrom;
+            }
+
+        @Override public String toString()
+            {
+            return String.format(Locale.ROOT, "%s->%s(%s) after %dms", from, to, reason, msInFrom);
+            }
+        }
+
+    public interface Listener
+        {
+        void onTransition(AndroidDevice androidDevice, Transition transition);
+        }
+
+    protected final AndroidDevice androidDevice;
+    protected final WeakReferenceSet<Listener> listeners = new WeakReferenceSet<>();
+    protected final Object lock = new Object();
+    protected final Object notifyLock = new Object();
+    protected State state = State.ABSENT;
+    protected long nsEntered = System.nanoTime();
+    protected final ArrayDeque<Transition> history = new ArrayDeque<>();
+    /** When he was attached by USB with no wireless connection, pending his getting one; zero if not */
+    protected long nsUsbAttached = 0;
+    /** When we lost his wireless connection, pending his getting another; zero if not */
+    protected long nsTcpLost = 0;
+
+    protected final LatencyHistogram usbToWireless = new LatencyHistogram("usbToWireless");
+    protected final LatencyHistogram reconnect = new LatencyHistogram("reconnect");
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public ConnectivityStateMachine(AndroidDevice androidDevice)
+        {
+        this.androidDevice = androidDevice;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public State getState()
+        {
+        synchronized (lock)
+            {
+            return state;
+            }
+        }
+
+    public List<Transition> getHistory()
+        {
+        synchronized (lock)
+            {
+            return new ArrayList<>(history);
+            }
+        }
+
+    /** Time from a USB attach to the wireless connection that follows it */
+    public LatencyHistogram getUsbToWirelessLatency()
+        {
+        return usbToWireless;
+        }
+
+    /** Time from losing a wireless connection to regaining one */
+    public LatencyHistogram getReconnectLatency()
+        {
+        return reconnect;
+        }
+
+    public void addListener(Listener listener)
+        {
+        listeners.add(listener);
+        }
+
+    public void removeListener(Listener listener)
+        {
+        listeners.remove(listener);
+        }
+
+    public void debugDump(int indent, PrintStream out)
+        {
+        synchronized (lock)
+            {
+            StringUtil.appendLine(indent, out, "connectivity=%s for %dms recent=%s", state, msSince(nsEntered), history);
+            StringUtil.appendLine(indent + 1, out, "%s", usbToWireless);
+            StringUtil.appendLine(indent + 1, out, "%s", reconnect);
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Events
+    //----------------------------------------------------------------------------------------------
+
+    /** A USB handle opened */
+    public void noteUsbAttached()
+        {
+        transition("usb attached", State.USB_ONLY, State.ABSENT, State.TCP_LOST, State.BACKOFF);
+        }
+
+    /** A TCPIP handle opened */
+    public void noteTcpConnected(String reason)
+        {
+        transition(reason, State.TCP_CONNECTED);
+        }
+
+    /** A handle closed; the booleans say what remains */
+    public void noteHandleClosed(boolean wasTcpip, boolean anyTcpipRemain, boolean anyRemain)
+        {
+        if (wasTcpip && !anyTcpipRemain)
+            {
+            transition("tcpip closed", State.TCP_LOST);
+            }
+        else if (!anyRemain)
+            {
+            transition("usb detached", State.ABSENT);
+            }
+        }
+
+    public void noteListenRequested()
+        {
+        transition("listen requested", State.LISTEN_REQUESTED, State.USB_ONLY, State.TCP_LOST, State.BACKOFF);
+        }
+
+    public void noteListening(boolean listening)
+        {
+        if (listening)
+            transition("listening", State.LISTENING, State.USB_ONLY, State.TCP_LOST, State.BACKOFF, State.LISTEN_REQUESTED);
+        else
+            transition("not listening", State.BACKOFF, State.LISTEN_REQUESTED);
+        }
+
+    public void noteConnecting()
+        {
+        transition("connecting", State.CONNECTING, State.USB_ONLY, State.TCP_LOST, State.BACKOFF, State.LISTEN_REQUESTED, State.LISTENING);
+        }
+
+    /** An attempt to connect came to nothing */
+    public void noteConnectFailed(String reason)
+        {
+        transition(reason, State.BACKOFF, State.USB_ONLY, State.TCP_LOST, State.LISTEN_REQUESTED, State.LISTENING, State.CONNECTING);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    /** Moves to the new state, provided we're in one of the given ones (or in any, if none are given) */
+    protected void transition(String reason, State to, State... onlyFrom)
+        {
+        // The notify lock keeps listeners hearing of transitions in the order they happen
+        synchronized (notifyLock)
+            {
+            Transition transition;
+            synchronized (lock)
+                {
+                if (state == to || !isOneOf(state, onlyFrom))
+                    {
+                    return;
+                    }
+                long nsNow = System.nanoTime();
+                transition = new Transition(state, to, reason, System.currentTimeMillis(), TimeUnit.NANOSECONDS.toMillis(nsNow - nsEntered));
+                state = to;
+                nsEntered = nsNow;
+                history.addLast(transition);
+                while (history.size() > Configuration.connectivityTransitionHistory)
+                    {
+                    history.removeFirst();
+                    }
+                measure(transition, nsNow);
+                }
+
+            EventLog.dd(TAG, "%s: %s", androidDevice.getDebugDisplayName(), transition);
+            for (Listener listener : listeners)
+                {
+                listener.onTransition(androidDevice, transition);
+                }
+            }
+        }
+
+    /** Called with the lock held */
+    protected void measure(Transition transition, long nsNow)
+        {
+        switch (transition.to)
+            {
+            case USB_ONLY:
+                if (transition.from == State.ABSENT)
+                    {
+                    nsUsbAttached = nsNow;
+                    nsTcpLost = 0;      // a fresh attach, not a recovery
+                    }
+                break;
+            case TCP_LOST:
+                nsTcpLost = nsNow;
+                break;
+            case TCP_CONNECTED:
+                if (nsTcpLost != 0)
+                    reconnect.record(TimeUnit.NANOSECONDS.toMillis(nsNow - nsTcpLost));
+                else if (nsUsbAttached != 0)
+                    usbToWireless.record(TimeUnit.NANOSECONDS.toMillis(nsNow - nsUsbAttached));
+                nsTcpLost = 0;
+                nsUsbAttached = 0;
+                break;
+            case ABSENT:
+                nsUsbAttached = 0;  // he left before we got him wireless; nothing to measure
+                break;
+            default:
+                break;
+            }
+        }
+
+    protected static boolean isOneOf(State state, State[] states)
+        {
+        if (states.length == 0) return true;
+        for (State candidate : states)
+            {
+            if (candidate == state) return true;
+            }
+        return false;
+        }
+
+    protected static long msSince(long nsStart)
+        {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nsStart);
+        }
+    }
@@ -0,0 +1,292 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
+
+import java.io.PrintStream;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link DeviceCommandScheduler} governs the traffic (shell commands, property reads) that we
+ * send to one device. At most {@link Configuration#deviceCommandParallelism} pieces of work run
+ * at once; the rest wait, and are admitted in order of {@link Priority}, then of arrival. Work
+ * runs on the thread that submitted it: the scheduler only decides when.
+ *
+ * The priority of work is that of the thread submitting it; see {@link #setThreadPriority}.
+ * Work that's already running under a scheduler is never made to wait on that scheduler again,
+ * so nested commands can't deadlock.
+ *
+ * Once the scheduler is closed (its handle has gone away), background work, both that
+ * waiting and that newly submitted, is rejected.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DeviceCommandScheduler
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "DeviceCommandScheduler";
+
+    /** In order of precedence. INTERACTIVE is for what the user is waiting on: a device
+     * that's just been plugged in going wireless, or an explicit request that it listen on
+     * TCPIP. IDENTITY (the default) is for learning who a device is; BACKGROUND, for
+     * refreshes and keepalives that no one is waiting on. */
+    public enum Priority { INTERACTIVE, IDENTITY, BACKGROUND }
+
+    public interface Work<T, E extends Exception>
+        {
+        T run() throws E;
+        }
+
+    protected static class Waiter
+        {
+        final Priority priority;
+        final long sequence;
+        final long nsQueued = System.nanoTime();
+
+        Waiter(Priority priority, long sequence)
+            {
+            this.priority = priority;
+            this.sequence = sequence;
+            }
+        }
+
+    protected static final ThreadLocal<Priority> threadPriority = ThreadLocal.withInitial(() -> Priority.IDENTITY);
+    protected static final ThreadLocal<Set<DeviceCommandScheduler>> threadAdmissions = ThreadLocal.withInitial(HashSet::new);
+
+    protected final String name;
+    protected final int parallelism;
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition changed = lock.newCondition();
+    protected final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+            Comparator.<Waiter, Priority>comparing(waiter -> waiter.priority).thenComparingLong(waiter -> waiter.sequence));
+    protected long nextSequence = 0;
+    protected int running = 0;
+    protected boolean closed = false;
+
+    // Metrics. Wait times are per priority.
+    protected int maxQueueDepth = 0;
+    protected final AtomicLong completedCount = new AtomicLong(0);
+    protected final AtomicLong rejectedCount = new AtomicLong(0);
+    protected final long[] admittedCounts = new long[Priority.values().length];
+    protected final long[] nsWaitTotals = new long[Priority.values().length];
+    protected final long[] nsWaitMaxes = new long[Priority.values().length];
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public DeviceCommandScheduler(String name)
+        {
+        this(name, Configuration.deviceCommandParallelism);
+        }
+
+    public DeviceCommandScheduler(String name, int parallelism)
+        {
+        this.name = name;
+        this.parallelism = Math.max(1, parallelism);
+        }
+
+    /** Rejects any background work that's still waiting, and any that's yet to come */
+    public void close()
+        {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    public void debugDump(int indent, PrintStream out)
+        {
+        lock.lock();
+        try {
+            StringUtil.appendLine(indent, out, "scheduler: running=%d queued=%d maxQueued=%d completed=%d rejected=%d",
+                    running, waiters.size(), maxQueueDepth, completedCount.get(), rejectedCount.get());
+            for (Priority priority : Priority.values())
+                {
+                int i = priority.ordinal();
+                if (admittedCounts[i] > 0)
+                    {
+                    StringUtil.appendLine(indent + 1, out, "%s: admitted=%d meanWait=%dms maxWait=%dms",
+                            priority, admittedCounts[i], TimeUnit.NANOSECONDS.toMillis(nsWaitTotals[i] / admittedCounts[i]), TimeUnit.NANOSECONDS.toMillis(nsWaitMaxes[i]));
+                    }
+                }
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    /** Sets the priority of the work this thread goes on to submit, returning the former one */
+    public static Priority setThreadPriority(Priority priority)
+        {
+        Priority result = threadPriority.get();
+        threadPriority.set(priority);
+        return result;
+        }
+
+    public static Priority getThreadPriority()
+        {
+        return threadPriority.get();
+        }
+
+    public int getQueueDepth()
+        {
+        lock.lock();
+        try {
+            return waiters.size();
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    public int getMaxQueueDepth()
+        {
+        lock.lock();
+        try {
+            return maxQueueDepth;
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    /** Mean time waited, in ms, by admitted work of the indicated priority */
+    public long getMeanWait(Priority priority)
+        {
+        lock.lock();
+        try {
+            int i = priority.ordinal();
+            return admittedCounts[i] == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nsWaitTotals[i] / admittedCounts[i]);
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Waits for our turn, then runs the work on this thread.
+     *
+     * @throws RejectedExecutionException if the work is background work and we're closed, or
+     *                                    if we're interrupted while waiting (the interrupt is
+     *                                    preserved)
+     */
+    public <T, E extends Exception> T run(Work<T, E> work) throws E
+        {
+        Set<DeviceCommandScheduler> admissions = threadAdmissions.get();
+        if (admissions.contains(this))
+            {
+            return work.run();
+            }
+
+        admit(getThreadPriority());
+        admissions.add(this);
+        try {
+            return work.run();
+            }
+        finally
+            {
+            admissions.remove(this);
+            release();
+            }
+        }
+
+    protected void admit(Priority priority)
+        {
+        lock.lock();
+        try {
+            Waiter waiter = new Waiter(priority, nextSequence++);
+            waiters.add(waiter);
+            maxQueueDepth = Math.max(maxQueueDepth, waiters.size());
+            try {
+                while (running >= parallelism || waiters.peek() != waiter)
+                    {
+                    if (closed && priority == Priority.BACKGROUND)
+                        {
+                        throw reject("%s: closed: background work rejected", name);
+                        }
+                    changed.await();
+                    }
+                if (closed && priority == Priority.BACKGROUND)
+                    {
+                    throw reject("%s: closed: background work rejected", name);
+                    }
+                }
+            catch (InterruptedException e)
+                {
+                Thread.currentThread().interrupt();
+                throw reject("%s: interrupted while waiting", name);
+                }
+            finally
+                {
+                waiters.remove(waiter);
+                changed.signalAll();    // the head of the queue may have changed
+                }
+
+            running++;
+            int i = priority.ordinal();
+            long nsWait = System.nanoTime() - waiter.nsQueued;
+            admittedCounts[i]++;
+            nsWaitTotals[i] += nsWait;
+            nsWaitMaxes[i] = Math.max(nsWaitMaxes[i], nsWait);
+            if (nsWait > TimeUnit.MILLISECONDS.toNanos(Configuration.msAdbTimeoutFast))
+                {
+                EventLog.dd(TAG, "%s: %s work waited %dms", name, priority, TimeUnit.NANOSECONDS.toMillis(nsWait));
+                }
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    protected void release()
+        {
+        completedCount.incrementAndGet();
+        lock.lock();
+        try {
+            running--;
+            changed.signalAll();
+            }
+        finally
+            {
+            lock.unlock();
+            }
+        }
+
+    protected RejectedExecutionException reject(String format, Object... args)
+        {
+        rejectedCount.incrementAndGet();
+        RejectedExecutionException result = new RejectedExecutionException(String.format(format, args));
+        EventLog.dd(TAG, "%s", result.getMessage());
+        return result;
+        }
+    }
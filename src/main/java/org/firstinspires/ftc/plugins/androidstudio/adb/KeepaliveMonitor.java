@@ -0,0 +1,312 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.CancellationToken;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
+import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
+import org.firstinspires.ftc.plugins.androidstudio.util.TcpProber;
+import org.firstinspires.ftc.plugins.androidstudio.util.ThreadPool;
+
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link KeepaliveMonitor} watches over each open TCPIP {@link AndroidDeviceHandle}, so that a
+ * wireless link that has died silently is found out (and reconnected) in the background, not
+ * when next the user tries to deploy over it.
+ *
+ * Each check is a TCP connect to the handle's adbd port; every {@link Configuration#keepaliveEchoEvery}th
+ * also has the device's shell 'echo' a token, which exercises the very connection ADB is using.
+ * Checks of a healthy link grow further apart, doubling from {@link Configuration#msKeepaliveIntervalMin}
+ * up to {@link Configuration#msKeepaliveIntervalMax}; a failed one is retried promptly. Should
+ * {@link Configuration#keepaliveFailureThreshold} fail in a row, we 'adb disconnect' the handle
+ * and have the {@link ReconnectScheduler} connect again. No device is probed more than {@link Configuration#keepaliveMaxProbesPerMinute}
+ * times a minute.
+ */
+@SuppressWarnings("WeakerAccess")
+public class KeepaliveMonitor
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "KeepaliveMonitor";
+
+    protected class Watch
+        {
+        final AndroidDeviceHandle handle;
+        final InetSocketAddress inetSocketAddress;
+        final ArrayDeque<Long> nsRecentProbes = new ArrayDeque<>();
+        long msInterval = Configuration.msKeepaliveIntervalMin;
+        int checkCount = 0;
+        int consecutiveFailures = 0;
+        int reconnectCount = 0;
+        boolean closed = false;
+        ScheduledFuture<?> timer = null;
+
+        Watch(AndroidDeviceHandle handle, InetSocketAddress inetSocketAddress)
+            {
+            this.handle = handle;
+            this.inetSocketAddress = inetSocketAddress;
+            }
+
+        @Override public String toString()
+            {
+            return String.format(Locale.ROOT, "%s interval=%dms checks=%d failures=%d reconnects=%d",
+                    IpUtil.toString(inetSocketAddress), msInterval, checkCount, consecutiveFailures, reconnectCount);
+            }
+        }
+
+    protected final AndroidDeviceDatabase database;
+    /** Keyed by the handle itself: a reconnect gets a new handle with the same serial number */
+    protected final Map<AndroidDeviceHandle, Watch> watches = new ConcurrentHashMap<>();
+    protected volatile boolean stopped = false;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public KeepaliveMonitor(AndroidDeviceDatabase database)
+        {
+        this.database = database;
+        }
+
+    public void stop()
+        {
+        stopped = true;
+        for (AndroidDeviceHandle handle : watches.keySet())
+            {
+            untrack(handle);
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public void debugDump(int indent, PrintStream out)
+        {
+        for (Watch watch : watches.values())
+            {
+            synchronized (watch)
+                {
+                StringUtil.appendLine(indent, out, "%s", watch);
+                }
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Starts watching the handle, if it's TCPIP. Idempotent. */
+    public void track(AndroidDeviceHandle handle)
+        {
+        InetSocketAddress inetSocketAddress = handle.getInetSocketAddress();
+        if (!Configuration.useKeepalive || stopped || !handle.isTcpip() || inetSocketAddress == null)
+            {
+            return;
+            }
+        Watch watch = new Watch(handle, inetSocketAddress);
+        if (watches.putIfAbsent(handle, watch) == null)
+            {
+            EventLog.dd(TAG, "track(%s)", handle.getSerialNumber());
+            synchronized (watch)
+                {
+                schedule(watch, watch.msInterval);
+                }
+            }
+        }
+
+    public void untrack(AndroidDeviceHandle handle)
+        {
+        Watch watch = watches.remove(handle);
+        if (watch != null)
+            {
+            EventLog.dd(TAG, "untrack(%s)", handle.getSerialNumber());
+            synchronized (watch)
+                {
+                watch.closed = true;
+                if (watch.timer != null) watch.timer.cancel(false);
+                }
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Checking
+    //----------------------------------------------------------------------------------------------
+
+    protected void check(Watch watch)
+        {
+        try {
+            checkOnce(watch);
+            }
+        catch (RuntimeException e)
+            {
+            // Thrown from a scheduled task, this would otherwise vanish, and the watch with it
+            EventLog.ee(TAG, e, "%s: check failed", watch.handle.getSerialNumber());
+            synchronized (watch)
+                {
+                schedule(watch, watch.msInterval);
+                }
+            }
+        }
+
+    protected void checkOnce(Watch watch)
+        {
+        boolean echo;
+        synchronized (watch)
+            {
+            if (watch.closed) return;
+
+            // Keep within our budget of probes
+            long msWait = msUntilProbeAllowed(watch, 1);
+            if (msWait > 0)
+                {
+                schedule(watch, msWait);
+                return;
+                }
+            watch.checkCount++;
+            // An echo costs a second probe, which a budget of one a minute can never allow
+            echo = Configuration.keepaliveEchoEvery > 0
+                    && watch.checkCount % Configuration.keepaliveEchoEvery == 0
+                    && maxProbesPerMinute() >= 2
+                    && msUntilProbeAllowed(watch, 2) == 0;
+            noteProbe(watch);
+            if (echo) noteProbe(watch);
+            }
+
+        TcpProber.getInstance().probe(watch.inetSocketAddress, Configuration.msKeepaliveProbeTimeout, false).whenComplete((listening, throwable) ->
+            {
+            boolean alive = throwable == null && Boolean.TRUE.equals(listening);
+            if (alive && echo)
+                {
+                try {
+                    ThreadPool.getDefault().execute(() -> noteResult(watch, echo(watch)));
+                    }
+                catch (RejectedExecutionException e)
+                    {
+                    noteResult(watch, true);    // the port answered; that'll do for now
+                    }
+                }
+            else
+                {
+                noteResult(watch, alive);
+                }
+            });
+        }
+
+    /** Runs the echo as background work, so it yields to anything the user is waiting for */
+    protected boolean echo(Watch watch)
+        {
+        DeviceCommandScheduler.Priority previous = DeviceCommandScheduler.setThreadPriority(DeviceCommandScheduler.Priority.BACKGROUND);
+        CancellationToken token = CancellationToken.current().withDeadline(Configuration.msKeepaliveProbeTimeout, TimeUnit.MILLISECONDS);
+        try (CancellationToken.Scope ignored = token.enter())
+            {
+            return watch.handle.isResponsive();
+            }
+        finally
+            {
+            token.cancel();
+            DeviceCommandScheduler.setThreadPriority(previous);
+            }
+        }
+
+    protected void noteResult(Watch watch, boolean alive)
+        {
+        synchronized (watch)
+            {
+            if (watch.closed) return;
+            if (alive)
+                {
+                watch.consecutiveFailures = 0;
+                watch.msInterval = Math.min(watch.msInterval * 2, Configuration.msKeepaliveIntervalMax);
+                schedule(watch, watch.msInterval);
+                return;
+                }
+
+            watch.consecutiveFailures++;
+            watch.msInterval = Configuration.msKeepaliveIntervalMin;
+            EventLog.dd(TAG, "%s: check failed (%d in a row)", watch.handle.getSerialNumber(), watch.consecutiveFailures);
+            if (watch.consecutiveFailures < Configuration.keepaliveFailureThreshold)
+                {
+                schedule(watch, watch.msInterval);
+                return;
+                }
+            watch.reconnectCount++;
+            }
+        reconnect(watch);
+        }
+
+    /** The link is dead. Drop it, so ADB stops waiting on it, then have a new one made. */
+    protected void reconnect(Watch watch)
+        {
+        EventLog.notify(TAG, "wireless link to %s seems dead: reconnecting", watch.handle.getAndroidDevice().getDebugDisplayName());
+        database.getHostAdb().disconnectAsync(watch.handle.getDevice()).whenComplete((disconnected, throwable) ->
+            {
+            database.getReconnectScheduler().reconnect(watch.inetSocketAddress, "keepalive");
+            synchronized (watch)
+                {
+                // Usually the disconnect will have closed the handle, and the reconnect will
+                // open a new one, which we'll be told to track. If not, carry on.
+                watch.consecutiveFailures = 0;
+                if (!watch.closed) schedule(watch, watch.msInterval);
+                }
+            });
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    protected int maxProbesPerMinute()
+        {
+        return Math.max(1, Configuration.keepaliveMaxProbesPerMinute);
+        }
+
+    /** Called with the watch locked. Probes must be no more than {@link #maxProbesPerMinute()}. */
+    protected long msUntilProbeAllowed(Watch watch, int probes)
+        {
+        long nsNow = System.nanoTime();
+        long nsWindow = TimeUnit.MINUTES.toNanos(1);
+        while (!watch.nsRecentProbes.isEmpty() && nsNow - watch.nsRecentProbes.peekFirst() >= nsWindow)
+            {
+            watch.nsRecentProbes.removeFirst();
+            }
+        int excess = watch.nsRecentProbes.size() + probes - maxProbesPerMinute();
+        if (excess <= 0)
+            {
+            return 0;
+            }
+        // The excess-th oldest probe has to age out of the window before there's room for ours
+        long nsFreed = watch.nsRecentProbes.stream().skip(Math.max(0, Math.min(excess, watch.nsRecentProbes.size()) - 1)).findFirst().orElse(nsNow) + nsWindow;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nsFreed - nsNow));
+        }
+
+    /** Called with the watch locked */
+    protected void noteProbe(Watch watch)
+        {
+        watch.nsRecentProbes.addLast(System.nanoTime());
+        }
+
+    /** Called with the watch locked */
+    protected void schedule(Watch watch, long msDelay)
+        {
+        if (watch.closed || stopped) return;
+        try {
+            watch.timer = ThreadPool.getScheduler().schedule(() -> check(watch), msDelay, TimeUnit.MILLISECONDS);
+            }
+        catch (RejectedExecutionException e)
+            {
+            watch.closed = true;    // shutting down
+            }
+        }
+    }
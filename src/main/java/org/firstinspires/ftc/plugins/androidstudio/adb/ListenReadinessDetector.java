@@ -0,0 +1,159 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
+import org.firstinspires.ftc.plugins.androidstudio.util.TcpProber;
+import org.firstinspires.ftc.plugins.androidstudio.util.ThreadPool;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ListenReadinessDetector} finds out when a device that has been asked to listen on
+ * TCPIP has actually started doing so, which takes a moment, as adbd must restart. Any of
+ * three signs will do:
+ *
+ *  - the device's adb TCP port property reading as the port, polled with backoff from
+ *    {@link Configuration#msListenPollInitial} up to {@link Configuration#msListenPollMax}
+ *  - adbd answering at the address we mean to connect to, probed on the same schedule
+ *  - ddmlib reporting one of the device's TCPIP connections coming online
+ *
+ * No thread waits on any of these: the result is a future, completed with true on the first
+ * sign of life, or with false once the timeout passes.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ListenReadinessDetector
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "ListenReadinessDetector";
+
+    protected final AndroidDeviceHandle handle;
+    protected final int port;
+    protected final @Nullable InetSocketAddress target;
+    protected final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    protected final List<ScheduledFuture<?>> timers = new ArrayList<>();
+    protected final long nsStart = System.nanoTime();
+    protected int pollCount = 0;
+    protected int probeCount = 0;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    /** If target is non-null, we also probe for adbd there */
+    public ListenReadinessDetector(AndroidDeviceHandle handle, int port, @Nullable InetSocketAddress target)
+        {
+        this.handle = handle;
+        this.port = port;
+        this.target = target;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Starts looking. Cancelling the returned future stops us. */
+    public CompletableFuture<Boolean> start(long msTimeout)
+        {
+        result.whenComplete((listening, throwable) -> finish(listening));
+        schedule(() -> result.complete(false), msTimeout);
+        handle.getAndroidDevice().whenOpenedUsingTcpip(result);
+        schedule(this::poll, Configuration.msListenPollInitial);
+        if (target != null)
+            {
+            schedule(this::probe, Configuration.msListenPollInitial);
+            }
+        return result;
+        }
+
+    protected void poll()
+        {
+        if (result.isDone()) return;
+        pollCount++;
+        ThreadPool.getDefault().execute(() ->
+            {
+            boolean listening;
+            try {
+                listening = handle.isListeningOnTcpip(port);
+                }
+            catch (RuntimeException e)
+                {
+                listening = false;  // adbd restarting, most likely; keep trying
+                }
+            if (listening)
+                result.complete(true);
+            else
+                schedule(this::poll, backoff(pollCount));
+            });
+        }
+
+    protected void probe()
+        {
+        if (result.isDone() || target == null) return;
+        probeCount++;
+        // Straight to the prober, not via IpUtil: failures while adbd restarts mustn't count against the address
+        TcpProber.getInstance().probe(target, Configuration.msAdbTimeoutFast, Configuration.tcpProbeHandshake).whenComplete((listening, throwable) ->
+            {
+            if (throwable == null && Boolean.TRUE.equals(listening))
+                result.complete(true);
+            else
+                schedule(this::probe, backoff(probeCount));
+            });
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    protected long backoff(int attempts)
+        {
+        long ms = Configuration.msListenPollInitial;
+        for (int i = 1; i < attempts && ms < Configuration.msListenPollMax; i++)
+            {
+            ms *= 2;
+            }
+        return Math.min(ms, Configuration.msListenPollMax);
+        }
+
+    protected void schedule(Runnable runnable, long msDelay)
+        {
+        synchronized (timers)
+            {
+            if (result.isDone()) return;
+            try {
+                timers.add(ThreadPool.getScheduler().schedule(runnable, msDelay, TimeUnit.MILLISECONDS));
+                }
+            catch (RejectedExecutionException e)
+                {
+                result.complete(false);
+                }
+            }
+        }
+
+    protected void finish(@Nullable Boolean listening)
+        {
+        synchronized (timers)
+            {
+            for (ScheduledFuture<?> timer : timers)
+                {
+                timer.cancel(false);
+                }
+            timers.clear();
+            }
+        EventLog.dd(TAG, "%s: port %d: %s in %dms after %d polls and %d probes%s", handle.getSerialNumber(), port,
+                Boolean.TRUE.equals(listening) ? "listening" : "not listening",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nsStart), pollCount, probeCount,
+                target == null ? "" : String.format(Locale.ROOT, " of %s", IpUtil.toString(target)));
+        }
+    }
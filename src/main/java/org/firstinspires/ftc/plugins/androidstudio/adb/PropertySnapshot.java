@@ -0,0 +1,257 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.adb.commands.GetPropCommand;
+import org.firstinspires.ftc.plugins.androidstudio.util.AdbCommunicationException;
+import org.firstinspires.ftc.plugins.androidstudio.util.CancellationToken;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link PropertySnapshot} holds a copy of all of a device's system properties, taken in one
+ * go with 'getprop', so that we needn't ask the device each time we want one of them. Most
+ * properties don't change while a device is connected; the few that do (see {@link #volatileProperties})
+ * are individually re-read once they're older than {@link Configuration#msVolatilePropertyTtl}.
+ * The snapshot as a whole is retaken after {@link Configuration#msPropertySnapshotTtl}, or
+ * after ddmlib tells us that the device's build info or state has changed.
+ *
+ * Our monitor guards only the map: we never talk to the device while holding it. Should several
+ * threads find the snapshot wanting at once, one retakes it while the others wait for that (unless
+ * they're more urgent, in which case they ask for just their one property). Should a retake fail,
+ * we don't try again for {@link Configuration#msPropertySnapshotFailureTtl}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class PropertySnapshot
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "PropertySnapshot";
+
+    /** Properties that can change at any time, and so which we don't trust for long */
+    public static final Set<String> volatileProperties = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            Configuration.PROP_ADB_TCP_PORT,
+            Configuration.PROP_WLAN_IP_ADDRESS,
+            Configuration.PROP_WLAN_STATUS)));
+
+    protected final AndroidDeviceHandle handle;
+    protected @Nullable Map<String, String> properties = null;
+    protected long nsTaken = 0;
+    /** When each volatile property was last read, if more recently than the snapshot was taken */
+    protected final Map<String, Long> nsRead = new HashMap<>();
+    protected int hitCount = 0;
+    protected int missCount = 0;
+    /** The retake in progress, if any, completing with whether it succeeded */
+    protected @Nullable CompletableFuture<Boolean> taking = null;
+    protected DeviceCommandScheduler.Priority takingPriority = null;
+    /** When a retake last failed; zero if the latest succeeded */
+    protected long nsTakeFailed = 0;
+    /** Bumped by invalidate(), so that a retake under way when that happens isn't believed */
+    protected int generation = 0;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public PropertySnapshot(AndroidDeviceHandle handle)
+        {
+        this.handle = handle;
+        }
+
+    public synchronized void debugDump(int indent, PrintStream out)
+        {
+        StringUtil.appendLine(indent, out, "properties: count=%d hits=%d misses=%d", properties == null ? 0 : properties.size(), hitCount, missCount);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public synchronized int getHitCount()
+        {
+        return hitCount;
+        }
+
+    public synchronized int getMissCount()
+        {
+        return missCount;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the property, or null if the device doesn't have it. If fresh is true,
+     * the device is asked directly, whatever we might already know.
+     */
+    public @Nullable String get(String property, boolean fresh)
+        {
+        if (!fresh)
+            {
+            CompletableFuture<Boolean> take = null;
+            boolean leader = false;
+            synchronized (this)
+                {
+                long nsNow = System.nanoTime();
+                if (properties == null || nsNow - nsTaken >= Configuration.msPropertySnapshotTtl * 1000000L)
+                    {
+                    missCount++;
+                    if (taking != null)
+                        {
+                        if (!isMoreUrgent(DeviceCommandScheduler.getThreadPriority(), takingPriority)) take = taking;
+                        }
+                    else if (nsTakeFailed == 0 || nsNow - nsTakeFailed >= Configuration.msPropertySnapshotFailureTtl * 1000000L)
+                        {
+                        take = taking = new CompletableFuture<>();
+                        takingPriority = DeviceCommandScheduler.getThreadPriority();
+                        leader = true;
+                        }
+                    }
+                else if (!volatileProperties.contains(property) || nsNow - nsRead.getOrDefault(property, nsTaken) < Configuration.msVolatilePropertyTtl * 1000000L)
+                    {
+                    hitCount++;
+                    return properties.get(property);
+                    }
+                else
+                    {
+                    missCount++;
+                    }
+                }
+
+            if (take != null && (leader ? take(take) : await(take)))
+                {
+                synchronized (this)
+                    {
+                    if (properties != null)
+                        {
+                        return properties.get(property);
+                        }
+                    }
+                }
+            }
+        else
+            {
+            synchronized (this)
+                {
+                missCount++;
+                }
+            }
+
+        String result = handle.readStringProperty(property);
+        update(property, result);
+        return result;
+        }
+
+    /** Replaces the snapshot with properties that were retrieved elsewhere */
+    public synchronized void fill(Map<String, String> properties)
+        {
+        this.properties = new HashMap<>(properties);
+        this.nsTaken = System.nanoTime();
+        this.nsRead.clear();
+        }
+
+    public synchronized void invalidate()
+        {
+        generation++;
+        nsTakeFailed = 0;
+        if (properties != null)
+            {
+            EventLog.dd(TAG, "invalidated: %s", handle.getSerialNumber());
+            properties = null;
+            nsRead.clear();
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    /** Retakes the snapshot, then completes the future with whether we did */
+    protected boolean take(CompletableFuture<Boolean> take)
+        {
+        int generationStart;
+        synchronized (this)
+            {
+            generationStart = generation;
+            }
+        Map<String, String> taken = null;
+        try {
+            GetPropCommand command = handle.prepare(new GetPropCommand(handle.getDevice()));
+            command.execute();
+            taken = command.getProperties();
+            }
+        catch (AdbCommunicationException e)
+            {
+            EventLog.dd(TAG, "snapshot of %s failed: %s", handle.getSerialNumber(), e.getMessage());
+            }
+        catch (RuntimeException e)
+            {
+            EventLog.ee(TAG, "snapshot of %s failed: %s", handle.getSerialNumber(), e.toString());
+            }
+        finally
+            {
+            boolean result = taken != null;
+            synchronized (this)
+                {
+                if (result && generation == generationStart)
+                    {
+                    fill(taken);
+                    }
+                nsTakeFailed = result ? 0 : System.nanoTime();
+                taking = null;
+                takingPriority = null;
+                }
+            take.complete(result);
+            }
+        return taken != null;
+        }
+
+    /** Waits for someone else's retake, as long as our caller's token allows */
+    protected boolean await(CompletableFuture<Boolean> take)
+        {
+        try {
+            return take.get(CancellationToken.current().msRemaining(Configuration.msAdbCommandDeadline), TimeUnit.MILLISECONDS);
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            return false;
+            }
+        catch (ExecutionException|TimeoutException e)
+            {
+            return false;
+            }
+        }
+
+    protected static boolean isMoreUrgent(DeviceCommandScheduler.Priority priority, DeviceCommandScheduler.Priority than)
+        {
+        return than != null && priority.ordinal() < than.ordinal();
+        }
+
+    protected synchronized void update(String property, @Nullable String value)
+        {
+        if (properties != null)
+            {
+            if (value == null)
+                properties.remove(property);
+            else
+                properties.put(property, value);
+            nsRead.put(property, System.nanoTime());
+            }
+        }
+    }
@@ -0,0 +1,361 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
+import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
+import org.firstinspires.ftc.plugins.androidstudio.util.ThreadPool;
+
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * {@link ReconnectScheduler} owns all our intents to (re)establish TCPIP connections: to a
+ * particular address once we've lost our connection there, and to whatever devices we can
+ * reach once the network has changed. There's at most one intent for each address (and one
+ * for the network as a whole); asking again for what's already intended changes nothing.
+ *
+ * An intent is tried at once, then again after a backoff that doubles each time, with jitter
+ * of {@link Configuration#reconnectJitter} either way, up to {@link Configuration#msReconnectBackoffMax},
+ * until it succeeds or has been tried as many times as it allows. An intent for an address is
+ * dropped as soon as we find ourselves connected there again, however that came about. Across
+ * all intents, no more than {@link Configuration#reconnectMaxAttemptsPerMinute} attempts are
+ * made in any minute; attempts beyond that wait their turn.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ReconnectScheduler
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "ReconnectScheduler";
+
+    protected static final String KEY_NETWORK = "network";
+
+    protected static class Intent
+        {
+        final String key;
+        final String reason;
+        final Supplier<CompletableFuture<Boolean>> attempt;
+        final BooleanSupplier satisfied;
+        final int maxAttempts;
+        final long msBackoffInitial;
+        final long nsCreated = System.nanoTime();
+        int attempts = 0;
+        long nsNextAttempt = 0;
+        boolean inFlight = false;
+        boolean retryPromptly = false;
+        boolean done = false;
+        ScheduledFuture<?> timer = null;
+
+        Intent(String key, String reason, Supplier<CompletableFuture<Boolean>> attempt, BooleanSupplier satisfied, int maxAttempts, long msBackoffInitial)
+            {
+            this.key = key;
+            this.reason = reason;
+            this.attempt = attempt;
+            this.satisfied = satisfied;
+            this.maxAttempts = Math.max(1, maxAttempts);
+            this.msBackoffInitial = Math.max(1, msBackoffInitial);
+            }
+
+        @Override public String toString()
+            {
+            long nsNow = System.nanoTime();
+            return String.format(Locale.ROOT, "%s(%s) attempts=%d/%d %s age=%dms", key, reason, attempts, maxAttempts,
+                    inFlight ? "attempting" : String.format(Locale.ROOT, "next in %dms", Math.max(0, TimeUnit.NANOSECONDS.toMillis(nsNextAttempt - nsNow))),
+                    TimeUnit.NANOSECONDS.toMillis(nsNow - nsCreated));
+            }
+        }
+
+    protected final AndroidDeviceDatabase database;
+    protected final Map<String, Intent> intents = new LinkedHashMap<>();
+    /** When our recent attempts (of all intents) were made, oldest first */
+    protected final ArrayDeque<Long> nsRecentAttempts = new ArrayDeque<>();
+    protected boolean stopped = false;
+    protected long intentCount = 0;
+    protected long coalescedCount = 0;
+    protected long attemptCount = 0;
+    protected long successCount = 0;
+    protected long satisfiedCount = 0;
+    protected long abandonedCount = 0;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public ReconnectScheduler(AndroidDeviceDatabase database)
+        {
+        this.database = database;
+        }
+
+    public void stop()
+        {
+        synchronized (intents)
+            {
+            stopped = true;
+            for (Intent intent : new ArrayList<>(intents.values()))
+                {
+                finish(intent, "stopped");
+                }
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    /** Describes each intent we've yet to see through, for diagnostics */
+    public List<String> getPendingIntents()
+        {
+        synchronized (intents)
+            {
+            List<String> result = new ArrayList<>();
+            for (Intent intent : intents.values())
+                {
+                result.add(intent.toString());
+                }
+            return result;
+            }
+        }
+
+    public void debugDump(int indent, PrintStream out)
+        {
+        synchronized (intents)
+            {
+            StringUtil.appendLine(indent, out, "reconnects: intents=%d coalesced=%d attempts=%d succeeded=%d satisfied=%d abandoned=%d",
+                    intentCount, coalescedCount, attemptCount, successCount, satisfiedCount, abandonedCount);
+            for (Intent intent : intents.values())
+                {
+                StringUtil.appendLine(indent + 1, out, "%s", intent);
+                }
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Intends that we 'adb connect' to the address until we're connected there */
+    public void reconnect(InetSocketAddress inetSocketAddress, String reason)
+        {
+        submit(new Intent(IpUtil.toString(inetSocketAddress), reason,
+                () -> database.getHostAdb().connectAsync(inetSocketAddress, Configuration.msAdbTimeoutSlow),
+                () -> database.isConnectedAt(inetSocketAddress),
+                Configuration.reconnectMaxAttempts,
+                Configuration.msReconnectBackoffInitial));
+        }
+
+    /** Intends that we refresh the TCPIP connectivity of all our devices until they're all
+     * connected (or we've tried {@link Configuration#networkRefreshMaxAttempts} times). For when
+     * the network has changed: it can take quite a while from our being told that an interface
+     * is up until we can actually reach anyone over it. */
+    public void refreshNetwork(String reason)
+        {
+        AtomicInteger attempts = new AtomicInteger(0);
+        submit(new Intent(KEY_NETWORK, reason,
+                () -> CompletableFuture.supplyAsync(() -> refreshNetworkNow(String.format(Locale.ROOT, "%s #%d", reason, attempts.incrementAndGet())), ThreadPool.getDefault()),
+                () -> false,
+                Configuration.networkRefreshMaxAttempts,
+                Configuration.msTcpipConnectivityRefreshInterval));
+        }
+
+    /** We're connected at the address (whether or not that's our doing), so needn't try to be */
+    public void noteConnected(InetSocketAddress inetSocketAddress)
+        {
+        synchronized (intents)
+            {
+            Intent intent = intents.get(IpUtil.toString(inetSocketAddress));
+            if (intent != null)
+                {
+                satisfiedCount++;
+                finish(intent, "connected");
+                }
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Attempting
+    //----------------------------------------------------------------------------------------------
+
+    protected void submit(Intent intent)
+        {
+        synchronized (intents)
+            {
+            if (stopped) return;
+            Intent existing = intents.get(intent.key);
+            if (existing != null)
+                {
+                coalescedCount++;
+                EventLog.dd(TAG, "coalesced %s(%s) into %s", intent.key, intent.reason, existing);
+                if (existing.key.equals(KEY_NETWORK))
+                    {
+                    // The network has changed again, so what we've learned from backing off no
+                    // longer applies: try again now (or as soon as the attempt under way is
+                    // done), and as often as if it were new
+                    existing.attempts = 0;
+                    if (existing.inFlight)
+                        {
+                        existing.retryPromptly = true;
+                        }
+                    else
+                        {
+                        if (existing.timer != null) existing.timer.cancel(false);
+                        schedule(existing, 0);
+                        }
+                    }
+                return;
+                }
+            intentCount++;
+            intents.put(intent.key, intent);
+            EventLog.dd(TAG, "intend %s(%s)", intent.key, intent.reason);
+            schedule(intent, 0);
+            }
+        }
+
+    protected void run(Intent intent)
+        {
+        // Asked with no lock of ours held, as we don't know what locks finding out might take
+        boolean satisfied = intent.satisfied.getAsBoolean();
+
+        synchronized (intents)
+            {
+            if (intent.done || intent.inFlight) return;     // the latter should we have been rescheduled as we ran
+            if (satisfied)
+                {
+                satisfiedCount++;
+                finish(intent, "already connected");
+                return;
+                }
+            long msWait = msUntilAttemptAllowed();
+            if (msWait > 0)
+                {
+                schedule(intent, msWait);
+                return;
+                }
+            nsRecentAttempts.addLast(System.nanoTime());
+            attemptCount++;
+            intent.attempts++;
+            intent.inFlight = true;
+            }
+
+        CompletableFuture<Boolean> attempt;
+        try {
+            attempt = intent.attempt.get();
+            }
+        catch (RuntimeException e)
+            {
+            attempt = CompletableFuture.completedFuture(false);
+            }
+        attempt.whenComplete((succeeded, throwable) -> noteAttempted(intent, throwable == null && Boolean.TRUE.equals(succeeded)));
+        }
+
+    protected void noteAttempted(Intent intent, boolean succeeded)
+        {
+        synchronized (intents)
+            {
+            intent.inFlight = false;
+            if (intent.done) return;
+            if (succeeded)
+                {
+                successCount++;
+                finish(intent, "succeeded");
+                }
+            else if (intent.attempts >= intent.maxAttempts)
+                {
+                abandonedCount++;
+                finish(intent, "gave up");
+                }
+            else
+                {
+                schedule(intent, intent.retryPromptly ? 0 : backoff(intent));
+                }
+            intent.retryPromptly = false;
+            }
+        }
+
+    protected boolean refreshNetworkNow(String reason)
+        {
+        DeviceCommandScheduler.Priority previous = DeviceCommandScheduler.setThreadPriority(DeviceCommandScheduler.Priority.BACKGROUND);
+        try {
+            return database.refreshTcpipConnectivity(reason);
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            return false;
+            }
+        finally
+            {
+            DeviceCommandScheduler.setThreadPriority(previous);
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    /** Called with the lock held */
+    protected void schedule(Intent intent, long msDelay)
+        {
+        if (stopped || intent.done) return;
+        intent.nsNextAttempt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(msDelay);
+        try {
+            intent.timer = ThreadPool.getScheduler().schedule(() -> run(intent), msDelay, TimeUnit.MILLISECONDS);
+            }
+        catch (RejectedExecutionException e)
+            {
+            finish(intent, "shutting down");
+            }
+        }
+
+    /** Called with the lock held */
+    protected void finish(Intent intent, String outcome)
+        {
+        if (intent.done) return;
+        intent.done = true;
+        if (intent.timer != null) intent.timer.cancel(false);
+        intents.remove(intent.key, intent);
+        EventLog.dd(TAG, "%s: %s", intent, outcome);
+        }
+
+    /** Called with the lock held */
+    protected long backoff(Intent intent)
+        {
+        int doublings = Math.max(0, Math.min(intent.attempts - 1, 30));
+        long ms = Math.min(intent.msBackoffInitial << doublings, Math.max(intent.msBackoffInitial, Configuration.msReconnectBackoffMax));
+        double jitter = Math.max(0, Math.min(1, Configuration.reconnectJitter));
+        double factor = jitter == 0 ? 1 : 1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter);
+        return Math.max(1, (long)(ms * factor));
+        }
+
+    /** Called with the lock held */
+    protected long msUntilAttemptAllowed()
+        {
+        long nsNow = System.nanoTime();
+        long nsWindow = TimeUnit.MINUTES.toNanos(1);
+        while (!nsRecentAttempts.isEmpty() && nsNow - nsRecentAttempts.peekFirst() >= nsWindow)
+            {
+            nsRecentAttempts.removeFirst();
+            }
+        if (nsRecentAttempts.size() < Math.max(1, Configuration.reconnectMaxAttemptsPerMinute))
+            {
+            return 0;
+            }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nsRecentAttempts.peekFirst() + nsWindow - nsNow));
+        }
+    }
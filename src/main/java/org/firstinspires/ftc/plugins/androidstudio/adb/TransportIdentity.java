@@ -0,0 +1,116 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb;
+
+import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * {@link TransportIdentity} records how ADB reaches a device, as told by the serial number
+ * that ADB gives the connection. We work that out once, when a handle opens, rather than
+ * re-parsing the serial number each time someone asks.
+ *
+ * Example serial numbers:
+ *
+ *      HT4AXJT00123                                USB
+ *      192.168.49.1:5555                           TCP (IPv4)
+ *      [fe80::e098:61ff:fed7:93%wlan0]:5555        TCP (IPv6)
+ *      adb-HT4AXJT00123-vWgJpq._adb-tls-connect._tcp    mDNS (wireless debugging)
+ *      emulator-5554                               emulator
+ */
+@SuppressWarnings("WeakerAccess")
+public final class TransportIdentity
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public enum Kind { USB, TCP_IPV4, TCP_IPV6, MDNS, EMULATOR }
+
+    protected static final Pattern patternMdns = Pattern.compile("^adb-.+\\._adb(-tls-connect)?\\._tcp\\.?$");
+    protected static final Pattern patternEmulator = Pattern.compile("^emulator-\\d+$");
+
+    public final String serialNumber;
+    public final Kind kind;
+    /** Where the device is, for TCP transports; null otherwise */
+    public final @Nullable InetSocketAddress inetSocketAddress;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    protected TransportIdentity(String serialNumber, Kind kind, @Nullable InetSocketAddress inetSocketAddress)
+        {
+        this.serialNumber = serialNumber;
+        this.kind = kind;
+        this.inetSocketAddress = inetSocketAddress;
+        }
+
+    /** Classifies the serial number; isEmulator is as ddmlib reports it */
+    public static TransportIdentity of(String serialNumber, boolean isEmulator)
+        {
+        if (isEmulator || patternEmulator.matcher(serialNumber).matches())
+            {
+            return new TransportIdentity(serialNumber, Kind.EMULATOR, null);
+            }
+        if (patternMdns.matcher(serialNumber).matches())
+            {
+            return new TransportIdentity(serialNumber, Kind.MDNS, null);
+            }
+        InetSocketAddress inetSocketAddress = parseInetSocketAddress(serialNumber);
+        if (inetSocketAddress != null)
+            {
+            // Classified by how ADB wrote it: an IPv6 address is bracketed even should it be IPv4-mapped
+            return new TransportIdentity(serialNumber, serialNumber.startsWith("[") ? Kind.TCP_IPV6 : Kind.TCP_IPV4, inetSocketAddress);
+            }
+        return new TransportIdentity(serialNumber, Kind.USB, null);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    /** Connected with 'adb connect' to an address we know */
+    public boolean isTcpip()
+        {
+        return kind == Kind.TCP_IPV4 || kind == Kind.TCP_IPV6;
+        }
+
+    public boolean isUSB()
+        {
+        return kind == Kind.USB;
+        }
+
+    public boolean isEmulator()
+        {
+        return kind == Kind.EMULATOR;
+        }
+
+    /** Over the network in some manner, whether or not we know the address */
+    public boolean isWireless()
+        {
+        return isTcpip() || kind == Kind.MDNS;
+        }
+
+    @Override public String toString()
+        {
+        return String.format(Locale.ROOT, "%s(%s)", kind, serialNumber);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    protected static @Nullable InetSocketAddress parseInetSocketAddress(String serialNumber)
+        {
+        try {
+            return IpUtil.parseInetSocketAddress(serialNumber);
+            }
+        catch (IllegalArgumentException e)
+            {
+            return null;    // not an address: he's attached by USB
+            }
+        }
+    }
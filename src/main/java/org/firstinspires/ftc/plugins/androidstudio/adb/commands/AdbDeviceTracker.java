@@ -0,0 +1,315 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link AdbDeviceTracker} holds open a 'host:track-devices-l' stream to the ADB server, which
+ * sends us the complete device list each time anything in it changes. We diff successive lists
+ * and turn the differences into open and close notifications. That's both quicker and cheaper
+ * than waiting on ddmlib to poll its way to the same conclusions.
+ *
+ * Example long-form device list:
+ *
+ *      2a28399                device usb:1-1 product:ryu model:Pixel_C device:dragon transport_id:1
+ *      192.168.49.1:5555      device product:ryu model:Pixel_C device:dragon transport_id:4
+ *      emulator-5554          offline transport_id:5
+ */
+@SuppressWarnings("WeakerAccess")
+public class AdbDeviceTracker
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "AdbDeviceTracker";
+
+    public static final String STATE_ONLINE = "device";
+
+    public interface Callback
+        {
+        /** The device has come online */
+        void onDeviceOpened(TrackedDevice device);
+        /** The device has gone offline or away entirely */
+        void onDeviceClosed(TrackedDevice device);
+        }
+
+    /** One line of the device list */
+    public static class TrackedDevice
+        {
+        public final String serialNumber;
+        public final String state;
+        public final @Nullable String product;
+        public final @Nullable String model;
+        public final @Nullable String device;
+        public final @Nullable String usb;
+        public final long transportId;
+
+        public TrackedDevice(String serialNumber, String state, Map<String,String> attributes)
+            {
+            this.serialNumber = serialNumber;
+            this.state = state;
+            this.product = attributes.get("product");
+            this.model = attributes.get("model");
+            this.device = attributes.get("device");
+            this.usb = attributes.get("usb");
+            long transportId = -1;
+            try {
+                String value = attributes.get("transport_id");
+                if (value != null) transportId = Long.parseLong(value);
+                }
+            catch (NumberFormatException e)
+                {
+                // ignore
+                }
+            this.transportId = transportId;
+            }
+
+        public boolean isOnline()
+            {
+            return STATE_ONLINE.equals(state);
+            }
+
+        public boolean isUSB()
+            {
+            return usb != null;
+            }
+
+        /** A change of transport means the device has been away, even if we didn't see it go */
+        public boolean isSameConnection(TrackedDevice him)
+            {
+            return serialNumber.equals(him.serialNumber) && state.equals(him.state) && transportId == him.transportId;
+            }
+
+        @Override public boolean equals(Object o)
+            {
+            if (!(o instanceof TrackedDevice)) return false;
+            TrackedDevice him = (TrackedDevice)o;
+            return isSameConnection(him)
+                && Objects.equals(product, him.product)
+                && Objects.equals(model, him.model)
+                && Objects.equals(device, him.device)
+                && Objects.equals(usb, him.usb);
+            }
+
+        @Override public int hashCode()
+            {
+            return Objects.hash(serialNumber, state, transportId);
+            }
+
+        @Override public String toString()
+            {
+            return String.format(Locale.ROOT, "%s(%s model=%s transport=%d)", serialNumber, state, model, transportId);
+            }
+        }
+
+    protected final Callback callback;
+    protected final InetSocketAddress serverAddress;
+    protected final AtomicReference<Thread> thread = new AtomicReference<>(null);
+    protected final AtomicReference<Socket> socket = new AtomicReference<>(null);
+    protected Map<String, TrackedDevice> currentDevices = Collections.emptyMap();
+    /** How long we'll wait before next subscribing; only touched on the tracking thread */
+    protected int msRetry = Configuration.msAdbTimeoutFast;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public AdbDeviceTracker(Callback callback)
+        {
+        this(callback, new InetSocketAddress(InetAddress.getLoopbackAddress(), Configuration.ADB_SERVER_PORT));
+        }
+
+    /** The server address is parameterized so that we can be pointed at a stand-in server */
+    public AdbDeviceTracker(Callback callback, InetSocketAddress serverAddress)
+        {
+        this.callback = callback;
+        this.serverAddress = serverAddress;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public synchronized Map<String, TrackedDevice> getCurrentDevices()
+        {
+        return currentDevices;
+        }
+
+    public @Nullable TrackedDevice getDevice(String serialNumber)
+        {
+        return getCurrentDevices().get(serialNumber);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    public void start()
+        {
+        EventLog.dd(this, "start()");
+        stop();
+        Thread thread = new Thread(this::run, Configuration.PROJECT_NAME + "-" + TAG);
+        thread.setDaemon(true);
+        this.thread.set(thread);
+        thread.start();
+        }
+
+    public void stop()
+        {
+        Thread thread = this.thread.getAndSet(null);
+        if (thread != null)
+            {
+            EventLog.dd(this, "stop()");
+            thread.interrupt();
+            closeSocket();
+            }
+        }
+
+    protected void run()
+        {
+        msRetry = Configuration.msAdbTimeoutFast;
+        try {
+            while (!Thread.currentThread().isInterrupted())
+                {
+                try {
+                    track();
+                    }
+                catch (IOException e)
+                    {
+                    if (Thread.currentThread().isInterrupted()) break;
+                    EventLog.dd(TAG, "tracking interrupted(%s): retrying in %dms", e.getMessage(), msRetry);
+                    }
+                finally
+                    {
+                    closeSocket();
+                    }
+
+                // The server went away; when it comes back, it'll tell us everything anew
+                update(Collections.emptyMap());
+                Thread.sleep(msRetry);
+                msRetry = Math.min(msRetry * 2, Configuration.msUnreachableBackoffMax);
+                }
+            }
+        catch (InterruptedException e)
+            {
+            // ignore, fall off end of thread
+            }
+        }
+
+    /** Only ever returns by throwing, typically because the server has closed the stream on us.
+     * Once the server has accepted our subscription, we're no longer backing off. */
+    protected void track() throws IOException
+        {
+        Socket socket = new Socket();
+        this.socket.set(socket);
+        if (this.thread.get() != Thread.currentThread())
+            {
+            throw new IOException("stopped");   // we lost a race with stop()
+            }
+
+        socket.connect(serverAddress, Configuration.msAdbTimeoutFast);
+        AdbHostProtocol.writeRequest(socket.getOutputStream(), "host:track-devices-l");
+
+        InputStream inputStream = socket.getInputStream();
+        String status = AdbHostProtocol.readString(inputStream, 4);
+        if (!AdbHostProtocol.OKAY.equals(status))
+            {
+            throw new IOException("track-devices refused: " + status);
+            }
+        msRetry = Configuration.msAdbTimeoutFast;
+
+        for (;;)
+            {
+            update(parseDeviceList(AdbHostProtocol.readLengthPrefixed(inputStream)));
+            }
+        }
+
+    protected void closeSocket()
+        {
+        Socket socket = this.socket.getAndSet(null);
+        if (socket != null)
+            {
+            try {
+                socket.close();
+                }
+            catch (IOException e)
+                {
+                // ignore
+                }
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Diffing
+    //----------------------------------------------------------------------------------------------
+
+    public static Map<String, TrackedDevice> parseDeviceList(String payload)
+        {
+        Map<String, TrackedDevice> result = new LinkedHashMap<>();
+        for (String line : payload.split("\n"))
+            {
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens.length < 2)
+                {
+                continue;
+                }
+
+            Map<String, String> attributes = new HashMap<>();
+            for (int i = 2; i < tokens.length; i++)
+                {
+                int ichColon = tokens[i].indexOf(':');
+                if (ichColon > 0)
+                    {
+                    attributes.put(tokens[i].substring(0, ichColon), tokens[i].substring(ichColon + 1));
+                    }
+                }
+            result.put(tokens[0], new TrackedDevice(tokens[0], tokens[1], attributes));
+            }
+        return result;
+        }
+
+    protected void update(Map<String, TrackedDevice> newDevices)
+        {
+        Map<String, TrackedDevice> oldDevices;
+        synchronized (this)
+            {
+            oldDevices = currentDevices;
+            currentDevices = Collections.unmodifiableMap(newDevices);
+            }
+
+        for (TrackedDevice oldDevice : oldDevices.values())
+            {
+            TrackedDevice newDevice = newDevices.get(oldDevice.serialNumber);
+            if (oldDevice.isOnline() && (newDevice == null || !newDevice.isSameConnection(oldDevice)))
+                {
+                EventLog.dd(TAG, "closed: %s", oldDevice);
+                callback.onDeviceClosed(oldDevice);
+                }
+            }
+
+        for (TrackedDevice newDevice : newDevices.values())
+            {
+            TrackedDevice oldDevice = oldDevices.get(newDevice.serialNumber);
+            if (newDevice.isOnline() && (oldDevice == null || !oldDevice.isSameConnection(newDevice)))
+                {
+                EventLog.dd(TAG, "opened: %s", newDevice);
+                callback.onDeviceOpened(newDevice);
+                }
+            }
+        }
+    }
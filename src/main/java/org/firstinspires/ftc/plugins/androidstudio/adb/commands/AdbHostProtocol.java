@@ -0,0 +1,272 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * {@link AdbHostProtocol} talks directly to the local ADB server using its socket-based
+ * 'smart socket' host protocol, which saves us the cost of launching an adb process for
+ * each of the simple host requests we make.
+ *
+ * Each request is sent as a four hex digit length followed by the request text. The server
+ * replies with 'OKAY' or 'FAIL', the latter (and some of the former) followed by a four hex
+ * digit length and a message.
+ *
+ * References:
+ *      https://android.googlesource.com/platform/system/core/+/master/adb/OVERVIEW.TXT
+ *      https://android.googlesource.com/platform/system/core/+/master/adb/SERVICES.TXT
+ */
+@SuppressWarnings("WeakerAccess")
+public class AdbHostProtocol
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "AdbHostProtocol";
+
+    public static final String OKAY = "OKAY";
+    public static final String FAIL = "FAIL";
+
+    protected final InetSocketAddress serverAddress;
+
+    /** The result of a host request. {@link Status#UNAVAILABLE} indicates that we couldn't
+     * converse with the server at all, as distinct from the server refusing the request */
+    public static class Response
+        {
+        public enum Status { OKAY, FAIL, UNAVAILABLE }
+
+        public final Status status;
+        public final String message;
+
+        public Response(Status status, String message)
+            {
+            this.status = status;
+            this.message = message == null ? "" : message;
+            }
+
+        public boolean isOkay()         { return status == Status.OKAY; }
+        public boolean isAvailable()    { return status != Status.UNAVAILABLE; }
+
+        @Override public String toString()
+            {
+            return String.format(Locale.ROOT, "%s(%s)", status, message);
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public AdbHostProtocol()
+        {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), Configuration.ADB_SERVER_PORT));
+        }
+
+    /** The server address is parameterized so that we can be pointed at a stand-in server */
+    public AdbHostProtocol(InetSocketAddress serverAddress)
+        {
+        this.serverAddress = serverAddress;
+        }
+
+    public InetSocketAddress getServerAddress()
+        {
+        return serverAddress;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Responds with, e.g., 'connected to 192.168.49.1:5555', 'already connected to 192.168.49.1:5555',
+     * or 'unable to connect to 192.168.49.3:5555' (newer servers say 'failed to connect to ...') */
+    public Response connect(InetSocketAddress inetSocketAddress, int msTimeout)
+        {
+        return connect(inetSocketAddress, msTimeout, null);
+        }
+    public Response connect(InetSocketAddress inetSocketAddress, int msTimeout, @Nullable Consumer<Socket> socketObserver)
+        {
+        return hostRequest("host:connect:" + IpUtil.toString(inetSocketAddress), msTimeout, true, socketObserver);
+        }
+
+    /** Responds with, e.g., 'disconnected 192.168.49.1:5555' (older servers say nothing at all),
+     * or FAILs with "no such device '192.168.49.3:5555'" */
+    public Response disconnect(String serialNumber, int msTimeout)
+        {
+        return disconnect(serialNumber, msTimeout, null);
+        }
+    public Response disconnect(String serialNumber, int msTimeout, @Nullable Consumer<Socket> socketObserver)
+        {
+        return hostRequest("host:disconnect:" + serialNumber, msTimeout, true, socketObserver);
+        }
+
+    /** 'tcpip' is a service of the device's adbd, not of the server, so we first switch the
+     * connection over to the device's transport, then make our request of same. The device
+     * replies with, e.g., 'restarting in TCP mode port: 5555' then closes the stream. */
+    public Response tcpip(String serialNumber, int port, int msTimeout)
+        {
+        return tcpip(serialNumber, port, msTimeout, null);
+        }
+    public Response tcpip(String serialNumber, int port, int msTimeout, @Nullable Consumer<Socket> socketObserver)
+        {
+        try (Socket socket = openSocket(msTimeout, socketObserver))
+            {
+            Response response = request(socket, "host:transport:" + serialNumber, false);
+            if (response.isOkay())
+                {
+                response = request(socket, String.format(Locale.ROOT, "tcpip:%d", port), false);
+                if (response.isOkay())
+                    {
+                    response = new Response(Response.Status.OKAY, readToEnd(socket.getInputStream()));
+                    }
+                }
+            return response;
+            }
+        catch (SocketTimeoutException e)
+            {
+            return timedOut(e, "tcpip " + serialNumber);
+            }
+        catch (IOException e)
+            {
+            return unavailable(e, "tcpip " + serialNumber);
+            }
+        }
+
+    /** Issues a request whose (single) response lives entirely on the server. The socket observer,
+     * if any, is told of the socket once it's open, so that it might close it to abandon the request. */
+    public Response hostRequest(String request, int msTimeout, boolean responseHasPayload, @Nullable Consumer<Socket> socketObserver)
+        {
+        try (Socket socket = openSocket(msTimeout, socketObserver))
+            {
+            return request(socket, request, responseHasPayload);
+            }
+        catch (SocketTimeoutException e)
+            {
+            return timedOut(e, request);
+            }
+        catch (IOException e)
+            {
+            return unavailable(e, request);
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Wire format
+    //----------------------------------------------------------------------------------------------
+
+    protected Socket openSocket(int msTimeout, @Nullable Consumer<Socket> socketObserver) throws IOException
+        {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(serverAddress, Configuration.msAdbTimeoutFast);
+            socket.setSoTimeout(msTimeout);
+            if (socketObserver != null) socketObserver.accept(socket);
+            return socket;
+            }
+        catch (IOException e)
+            {
+            socket.close();
+            // Not being able to reach the server at all is never a mere timeout of the request
+            throw e instanceof SocketTimeoutException ? new IOException(e.getMessage(), e) : e;
+            }
+        }
+
+    protected Response request(Socket socket, String request, boolean okayHasPayload) throws IOException
+        {
+        EventLog.dd(TAG, "request: %s", request);
+        writeRequest(socket.getOutputStream(), request);
+
+        InputStream inputStream = socket.getInputStream();
+        String status = readString(inputStream, 4);
+        if (OKAY.equals(status))
+            {
+            return new Response(Response.Status.OKAY, okayHasPayload ? readLengthPrefixed(inputStream) : "");
+            }
+        else if (FAIL.equals(status))
+            {
+            return new Response(Response.Status.FAIL, readLengthPrefixed(inputStream));
+            }
+        else
+            throw new IOException(String.format(Locale.ROOT, "unexpected adb server status '%s': %s", status, request));
+        }
+
+    public static void writeRequest(OutputStream outputStream, String request) throws IOException
+        {
+        byte[] payload = request.getBytes(StandardCharsets.UTF_8);
+        outputStream.write(String.format(Locale.ROOT, "%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        outputStream.write(payload);
+        outputStream.flush();
+        }
+
+    public static String readLengthPrefixed(InputStream inputStream) throws IOException
+        {
+        String hexLength = readString(inputStream, 4);
+        try {
+            return readString(inputStream, Integer.parseInt(hexLength, 16));
+            }
+        catch (NumberFormatException e)
+            {
+            throw new IOException("invalid adb length prefix: " + hexLength, e);
+            }
+        }
+
+    public static String readString(InputStream inputStream, int length) throws IOException
+        {
+        byte[] buffer = new byte[length];
+        int cb = 0;
+        while (cb < length)
+            {
+            int cbRead = inputStream.read(buffer, cb, length - cb);
+            if (cbRead < 0) throw new EOFException("adb server closed connection");
+            cb += cbRead;
+            }
+        return new String(buffer, StandardCharsets.UTF_8);
+        }
+
+    public static String readToEnd(InputStream inputStream) throws IOException
+        {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        try {
+            for (int cbRead; (cbRead = inputStream.read(buffer)) >= 0; )
+                {
+                result.write(buffer, 0, cbRead);
+                }
+            }
+        catch (SocketTimeoutException e)
+            {
+            // Take what we've got: the device may well have dropped the connection on us as it restarts
+            }
+        return new String(result.toByteArray(), StandardCharsets.UTF_8).trim();
+        }
+
+    /** The server heard us, but didn't answer in time: that's a failure of the request, not
+     * a reason to go elsewhere with it */
+    protected Response timedOut(SocketTimeoutException e, String request)
+        {
+        EventLog.dd(TAG, "adb server timed out: %s", request);
+        return new Response(Response.Status.FAIL, "timeout: " + e.getMessage());
+        }
+
+    protected Response unavailable(IOException e, String request)
+        {
+        EventLog.dd(TAG, "adb server unavailable(%s): %s", e.getMessage(), request);
+        return new Response(Response.Status.UNAVAILABLE, e.getMessage());
+        }
+    }
@@ -6,11 +6,17 @@ import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
 import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.adb.DeviceCommandScheduler;
 import org.firstinspires.ftc.plugins.androidstudio.util.AdbCommunicationException;
+import org.firstinspires.ftc.plugins.androidstudio.util.CancellationToken;
 import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -24,22 +30,195 @@ public abstract class AdbShellCommand
 
     protected IDevice device = null;
     protected String executedCommand = "<unexecuted>";
+    protected @Nullable ShellSession shellSession = null;
+    protected @Nullable DeviceCommandScheduler scheduler = null;
+    protected CancellationToken cancellationToken = CancellationToken.NONE;
+    protected @Nullable String resultCacheScope = null;
 
     protected AdbShellCommand(IDevice device)
         {
         this.device = device;
         }
 
+    /** The text of the command to be executed in the shell */
+    public abstract String getCommand();
+
+    /** The receiver to which the output of the command is to be delivered */
+    public abstract IShellOutputReceiver getReceiver();
+
+    public void execute() throws AdbCommunicationException
+        {
+        if (replayCachedResult())
+            {
+            return;
+            }
+        if (isResultCacheable())
+            {
+            RecordingReceiver recorder = new RecordingReceiver(getReceiver());
+            executeShellCommand(getCommand(), recorder);
+            byte[] output = recorder.getOutput();
+            if (output != null) cacheResult(output);
+            }
+        else
+            {
+            executeShellCommand(getCommand(), getReceiver());
+            }
+        }
+
+    /** If set, the command will be run in the indicated session instead of in a shell of its own */
+    public AdbShellCommand setShellSession(@Nullable ShellSession shellSession)
+        {
+        this.shellSession = shellSession;
+        return this;
+        }
+
+    /** If set, the command will wait its turn with the device's other traffic */
+    public AdbShellCommand setScheduler(@Nullable DeviceCommandScheduler scheduler)
+        {
+        this.scheduler = scheduler;
+        return this;
+        }
+
+    /**
+     * Once this token is cancelled, or its deadline passes, the command is abandoned. The token
+     * current for the executing thread (see {@link CancellationToken#enter()}) is honored too.
+     */
+    public AdbShellCommand setCancellationToken(CancellationToken cancellationToken)
+        {
+        this.cancellationToken = cancellationToken;
+        return this;
+        }
+
+    /**
+     * If set (to the USB serial number of the device), the answers to commands that can be
+     * cached are shared with other commands, and other handles, through the {@link CommandResultCache}
+     */
+    public AdbShellCommand setResultCacheScope(@Nullable String usbSerialNumber)
+        {
+        this.resultCacheScope = usbSerialNumber;
+        return this;
+        }
+
+    /** Commands whose answers may be reused return what identifies the question they ask; others return null */
+    protected @Nullable String getResultCacheKey()
+        {
+        return null;
+        }
+
+    /** How long, in ms, the answer to this command may be reused */
+    protected long getMsResultCacheTtl()
+        {
+        return 0;
+        }
+
+    protected boolean isResultCacheable()
+        {
+        return resultCacheScope != null && getResultCacheKey() != null;
+        }
+
+    /** If we already know the answer, delivers it to our receiver without troubling the device */
+    protected boolean replayCachedResult()
+        {
+        if (!isResultCacheable())
+            {
+            return false;
+            }
+        byte[] output = CommandResultCache.getInstance().get(resultCacheScope, getResultCacheKey());
+        if (output == null)
+            {
+            return false;
+            }
+        executedCommand = getCommand();
+        IShellOutputReceiver receiver = getReceiver();
+        if (output.length > 0)
+            {
+            receiver.addOutput(output, 0, output.length);
+            }
+        receiver.flush();
+        return true;
+        }
+
+    protected void cacheResult(byte[] output)
+        {
+        if (isResultCacheable())
+            {
+            CommandResultCache.getInstance().put(resultCacheScope, getResultCacheKey(), output, getMsResultCacheTtl());
+            }
+        }
+
     protected void executeShellCommand(String command, IShellOutputReceiver receiver) throws AdbCommunicationException
         {
+        if (scheduler == null)
+            {
+            executeShellCommandNow(command, receiver);
+            return;
+            }
+        try {
+            scheduler.run(() ->
+                {
+                executeShellCommandNow(command, receiver);
+                return null;
+                });
+            }
+        catch (RejectedExecutionException e)
+            {
+            throw new AdbCommunicationException(e, "command rejected: %s", command);
+            }
+        }
+
+    protected void executeShellCommandNow(String command, IShellOutputReceiver receiver) throws AdbCommunicationException
+        {
+        CancellationToken token = CancellationToken.anyOf(cancellationToken, CancellationToken.current());
+        CancellableReceiver cancellableReceiver = new CancellableReceiver(receiver, token);
         try {
             executedCommand = command;
-            device.executeShellCommand(command, receiver, Configuration.msAdbTimeoutSlow, TimeUnit.MILLISECONDS);
+            throwIfAbandoned(cancellableReceiver, command);
+            if (!executeInSession(command, cancellableReceiver, token))
+                {
+                device.executeShellCommand(command, cancellableReceiver, msTimeout(token), TimeUnit.MILLISECONDS);
+                }
             }
         catch (AdbCommandRejectedException|TimeoutException|ShellCommandUnresponsiveException|IOException e)
             {
-            EventLog.dd(TAG, "command failed(%s): %s", e.getMessage(), command);
-            throw new AdbCommunicationException(e, "command failed: %s", command);
+            if (!receiver.isCancelled())    // the receiver having all it wants is no failure
+                {
+                throwIfAbandoned(cancellableReceiver, command);
+                EventLog.dd(TAG, "command failed(%s): %s", e.getMessage(), command);
+                throw new AdbCommunicationException(e, "command failed: %s", command);
+                }
+            }
+        throwIfAbandoned(cancellableReceiver, command);    // ddmlib returns quietly when cancelled
+        cancellableReceiver.ensureFlushed();                // ... and without flushing
+        }
+
+    /** Returns false if the command should instead be run in a shell of its own */
+    protected boolean executeInSession(String command, IShellOutputReceiver receiver, CancellationToken token) throws IOException
+        {
+        if (shellSession != null)
+            {
+            try {
+                shellSession.execute(command, receiver, msTimeout(token));
+                return true;
+                }
+            catch (ShellSession.UnavailableException e)
+                {
+                EventLog.dd(TAG, "%s: using ddmlib", e.getMessage());
+                }
+            }
+        return false;
+        }
+
+    protected int msTimeout(CancellationToken token)
+        {
+        return (int)Math.max(1, token.msRemaining(Configuration.msAdbTimeoutSlow));
+        }
+
+    protected void throwIfAbandoned(CancellableReceiver receiver, String command) throws AdbCommunicationException
+        {
+        if (receiver.isAbandoned())
+            {
+            EventLog.dd(TAG, "command cancelled: %s", command);
+            throw new AdbCommunicationException(new CancellationException(), "command cancelled: %s", command);
             }
         }
 
@@ -54,4 +233,93 @@ public abstract class AdbShellCommand
         String payload = String.format("%s:%s command='%s' %s", this.getClass().getSimpleName(), device, executedCommand, message);
         return new RuntimeException(payload);
         }
+
+    /**
+     * Passes output through to the command's own receiver, but reports cancellation should the
+     * token be cancelled or the executing thread be interrupted, which both ddmlib and
+     * {@link ShellSession} check between reads. A receiver that cancels itself (see
+     * {@link LineReceiver#stop()}) has simply seen all it needs: the command has not failed.
+     */
+    protected static class CancellableReceiver implements IShellOutputReceiver
+        {
+        protected final IShellOutputReceiver receiver;
+        protected final CancellationToken token;
+        protected boolean flushed = false;
+
+        public CancellableReceiver(IShellOutputReceiver receiver, CancellationToken token)
+            {
+            this.receiver = receiver;
+            this.token = token;
+            }
+
+        @Override public void addOutput(byte[] data, int offset, int length)
+            {
+            receiver.addOutput(data, offset, length);
+            }
+
+        @Override public void flush()
+            {
+            flushed = true;
+            receiver.flush();
+            }
+
+        @Override public boolean isCancelled()
+            {
+            return receiver.isCancelled() || isAbandoned();
+            }
+
+        /** Whether the command is being given up on by someone other than the receiver */
+        public boolean isAbandoned()
+            {
+            return !receiver.isCancelled() && (token.isCancelled() || Thread.currentThread().isInterrupted());
+            }
+
+        public void ensureFlushed()
+            {
+            if (!flushed) flush();
+            }
+        }
+    
+    /** Keeps a copy of all that passes through it, that we might cache it */
+    protected static class RecordingReceiver implements IShellOutputReceiver
+        {
+        protected final IShellOutputReceiver receiver;
+        protected final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        protected boolean overflowed = false;
+        protected boolean flushed = false;
+
+        public RecordingReceiver(IShellOutputReceiver receiver)
+            {
+            this.receiver = receiver;
+            }
+
+        @Override public void addOutput(byte[] data, int offset, int length)
+            {
+            if (!overflowed)
+                {
+                if (output.size() + length > Configuration.commandResultCacheMaxEntryBytes)
+                    overflowed = true;
+                else
+                    output.write(data, offset, length);
+                }
+            receiver.addOutput(data, offset, length);
+            }
+
+        @Override public void flush()
+            {
+            flushed = true;
+            receiver.flush();
+            }
+
+        @Override public boolean isCancelled()
+            {
+            return receiver.isCancelled();
+            }
+
+        /** Returns all the output, or null if we don't have all of it */
+        public @Nullable byte[] getOutput()
+            {
+            return flushed && !overflowed && !receiver.isCancelled() ? output.toByteArray() : null;
+            }
+        }
     }
@@ -1,45 +1,103 @@
 package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
 
-import com.android.ddmlib.MultiLineReceiver;
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
 import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * {@link AdbShellCommandResultCollector} is a generic collector of command response lines.
+ * At most {@link Configuration#shellOutputMaxBytes} of them are retained: should a command say
+ * more, the oldest lines are dropped to make room, so it's the tail of the output that we keep.
+ *
+ * If told to {@link #stopWhen(Pattern) stop when} a line matches some pattern, the collector
+ * abandons the command as soon as such a line arrives, that line being the last collected.
  */
 @SuppressWarnings("WeakerAccess")
-public class AdbShellCommandResultCollector extends MultiLineReceiver
+public class AdbShellCommandResultCollector extends LineReceiver
     {
-    protected StringBuilder builder = new StringBuilder();
+    protected final int maxBytes;
+    protected final ArrayDeque<String> lines = new ArrayDeque<>();
+    protected int cbLines = 0;
+    protected int droppedLineCount = 0;
+    protected @Nullable Pattern stopPattern = null;
+    protected @Nullable Matcher stopMatch = null;
     protected String commandResult = null;
 
-    @Override
-    public boolean isCancelled()
+    public AdbShellCommandResultCollector()
+        {
+        this(Configuration.shellOutputMaxBytes);
+        }
+
+    public AdbShellCommandResultCollector(int maxBytes)
+        {
+        this.maxBytes = Math.max(0, maxBytes);
+        }
+
+    /** Stops the command once a line is found to contain a match for the pattern */
+    public AdbShellCommandResultCollector stopWhen(Pattern pattern)
         {
-        return false;
+        this.stopPattern = pattern;
+        return this;
         }
 
     @Override
-    public void processNewLines(String[] lines)
+    protected boolean onLine(String line)
         {
-        for (String line : lines)
+        if (StringUtil.isNullOrEmpty(line) || line.startsWith("#") || line.startsWith("$"))
+            {
+            return true;
+            }
+
+        lines.addLast(line);
+        cbLines += byteCount(line);
+        while (cbLines > maxBytes && !lines.isEmpty())
             {
-            if (StringUtil.isNullOrEmpty(line) || line.startsWith("#") || line.startsWith("$"))
+            cbLines -= byteCount(lines.removeFirst());
+            droppedLineCount++;
+            }
+
+        if (stopPattern != null)
+            {
+            Matcher matcher = stopPattern.matcher(line);
+            if (matcher.find())
                 {
-                continue;
+                stopMatch = matcher;
+                return false;
                 }
-            if (builder.length() > 0) builder.append("\n");
-            builder.append(line);
             }
+        return true;
         }
 
     @Override
-    public void done()
+    protected void done()
         {
-        this.commandResult = builder.toString();
+        this.commandResult = String.join("\n", lines);
         }
 
     public String getResult()
         {
         return commandResult;
         }
+
+    /** The match of the line that stopped the command, if one did */
+    public @Nullable Matcher getStopMatch()
+        {
+        return stopMatch;
+        }
+
+    /** The number of lines dropped to keep within our limit; if nonzero, the result is incomplete */
+    public int getDroppedLineCount()
+        {
+        return droppedLineCount;
+        }
+
+    protected static int byteCount(String line)
+        {
+        return line.getBytes(StandardCharsets.UTF_8).length + 1;    // the +1 for the newline
+        }
     }
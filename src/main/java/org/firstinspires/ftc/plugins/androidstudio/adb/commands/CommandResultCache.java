@@ -0,0 +1,203 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * {@link CommandResultCache} remembers the raw output of those {@link AdbShellCommand}s whose
+ * answers seldom change (see {@link AdbShellCommand#getResultCacheKey()}), so that asking the
+ * same question again soon after needn't involve the device at all. A cached result is replayed
+ * into the receiver of the later command just as if it had come from the device.
+ *
+ * Results are keyed by the USB serial number of the device along with the identity of the
+ * command, and so are shared by all the handles (USB and TCPIP alike) of the one device.
+ * Each result is kept for as long as its command asks; at most {@link Configuration#commandResultCacheCapacity}
+ * of them are kept in all, the least recently used being forgotten first.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CommandResultCache
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "CommandResultCache";
+
+    protected static class InstanceHolder
+        {
+        public static CommandResultCache theInstance = new CommandResultCache();
+        }
+    public static CommandResultCache getInstance() { return InstanceHolder.theInstance; }
+
+    protected static class Key
+        {
+        final String usbSerialNumber;
+        final String command;
+
+        Key(String usbSerialNumber, String command)
+            {
+            this.usbSerialNumber = usbSerialNumber;
+            this.command = command;
+            }
+
+        @Override public boolean equals(Object o)
+            {
+            if (!(o instanceof Key)) return false;
+            Key them = (Key)o;
+            return usbSerialNumber.equals(them.usbSerialNumber) && command.equals(them.command);
+            }
+
+        @Override public int hashCode()
+            {
+            return Objects.hash(usbSerialNumber, command);
+            }
+        }
+
+    protected static class Entry
+        {
+        final byte[] output;
+        final long nsExpires;
+
+        Entry(byte[] output, long msTtl)
+            {
+            this.output = output;
+            this.nsExpires = System.nanoTime() + msTtl * 1000000L;
+            }
+
+        boolean isExpired(long nsNow)
+            {
+            return nsNow - nsExpires >= 0;
+            }
+        }
+
+    protected final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true)
+        {
+        @Override protected boolean removeEldestEntry(Map.Entry<Key, CommandResultCache.Entry> eldest)
+            {
+            boolean result = size() > Configuration.commandResultCacheCapacity;
+            if (result) evictionCount++;
+            return result;
+            }
+        };
+    protected long hitCount = 0;
+    protected long missCount = 0;
+    protected long evictionCount = 0;
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public long getHitCount()
+        {
+        synchronized (entries)
+            {
+            return hitCount;
+            }
+        }
+
+    public long getMissCount()
+        {
+        synchronized (entries)
+            {
+            return missCount;
+            }
+        }
+
+    /** The proportion of lookups that were answered from the cache */
+    public double getHitRate()
+        {
+        synchronized (entries)
+            {
+            long lookups = hitCount + missCount;
+            return lookups == 0 ? 0 : (double)hitCount / lookups;
+            }
+        }
+
+    public void debugDump(int indent, PrintStream out)
+        {
+        synchronized (entries)
+            {
+            StringUtil.appendLine(indent, out, "results: count=%d hits=%d misses=%d hitRate=%.2f evictions=%d",
+                    entries.size(), hitCount, missCount, getHitRate(), evictionCount);
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Returns the output of the command when last run on the device, or null if we don't have it */
+    public @Nullable byte[] get(String usbSerialNumber, String command)
+        {
+        synchronized (entries)
+            {
+            Key key = new Key(usbSerialNumber, command);
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isExpired(System.nanoTime()))
+                {
+                entries.remove(key);
+                entry = null;
+                }
+            if (entry == null)
+                {
+                missCount++;
+                return null;
+                }
+            hitCount++;
+            return entry.output;
+            }
+        }
+
+    public void put(String usbSerialNumber, String command, byte[] output, long msTtl)
+        {
+        if (msTtl <= 0 || output.length > Configuration.commandResultCacheMaxEntryBytes)
+            {
+            return;
+            }
+        synchronized (entries)
+            {
+            entries.put(new Key(usbSerialNumber, command), new Entry(output, msTtl));
+            }
+        }
+
+    /** Forgets all we know of the device; for use when what we knew may have become untrue */
+    public void invalidate(String usbSerialNumber)
+        {
+        synchronized (entries)
+            {
+            int count = 0;
+            for (Iterator<Key> iterator = entries.keySet().iterator(); iterator.hasNext(); )
+                {
+                if (iterator.next().usbSerialNumber.equals(usbSerialNumber))
+                    {
+                    iterator.remove();
+                    count++;
+                    }
+                }
+            if (count > 0)
+                {
+                EventLog.dd(TAG, "invalidated %d: %s", count, usbSerialNumber);
+                }
+            }
+        }
+
+    public void invalidateAll()
+        {
+        synchronized (entries)
+            {
+            if (!entries.isEmpty())
+                {
+                EventLog.dd(TAG, "invalidated all (%d)", entries.size());
+                entries.clear();
+                }
+            }
+        }
+    }
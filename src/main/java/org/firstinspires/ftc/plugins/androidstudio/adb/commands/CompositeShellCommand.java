@@ -0,0 +1,164 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import org.firstinspires.ftc.plugins.androidstudio.util.AdbCommunicationException;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * {@link CompositeShellCommand} runs several other {@link AdbShellCommand}s in a single shell
+ * invocation, so that we pay for only one round trip to the device rather than one for each.
+ * A marker line unique to this execution is printed after each of the constituent commands;
+ * once all the output has arrived, we split it at the markers and hand each section to the
+ * receiver of the command that produced it, so that each command parses its own output just
+ * as it would had it been run alone.
+ *
+ * Constituent commands whose answers are already in the {@link CommandResultCache} are answered
+ * from there, and left out of what's sent to the device; the answers of those that are sent are
+ * cached in turn.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CompositeShellCommand extends AdbShellCommand
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "CompositeShellCommand";
+
+    protected final List<AdbShellCommand> commands = new ArrayList<>();
+    /** Those of the commands that are actually sent to the device */
+    protected List<AdbShellCommand> pending = commands;
+    protected final String marker = "__" + Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+    protected final Receiver receiver = new Receiver();
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public CompositeShellCommand(IDevice device, AdbShellCommand... commands)
+        {
+        super(device);
+        add(commands);
+        }
+
+    public CompositeShellCommand add(AdbShellCommand... commands)
+        {
+        this.commands.addAll(Arrays.asList(commands));
+        return this;
+        }
+
+    public List<AdbShellCommand> getCommands()
+        {
+        return Collections.unmodifiableList(commands);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Command
+    //----------------------------------------------------------------------------------------------
+
+    @Override public void execute() throws AdbCommunicationException
+        {
+        pending = new ArrayList<>();
+        for (AdbShellCommand command : commands)
+            {
+            command.setResultCacheScope(resultCacheScope);
+            if (!command.replayCachedResult())
+                {
+                pending.add(command);
+                }
+            }
+        if (!pending.isEmpty())
+            {
+            super.execute();
+            }
+        }
+
+    @Override public String getCommand()
+        {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < pending.size(); i++)
+            {
+            if (i > 0) result.append(' ');
+            result.append(String.format(Locale.ROOT, "{ %s; } </dev/null 2>&1; printf '\\n%%s\\n' '%s';", pending.get(i).getCommand(), sectionMarker(i)));
+            }
+        return result.toString();
+        }
+
+    @Override public IShellOutputReceiver getReceiver()
+        {
+        return receiver;
+        }
+
+    protected String sectionMarker(int index)
+        {
+        return String.format(Locale.ROOT, "%s_%d__", marker, index);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Receiving
+    //----------------------------------------------------------------------------------------------
+
+    protected class Receiver implements IShellOutputReceiver
+        {
+        protected final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        @Override public void addOutput(byte[] data, int offset, int length)
+            {
+            output.write(data, offset, length);
+            }
+
+        @Override public boolean isCancelled()
+            {
+            for (AdbShellCommand command : pending)
+                {
+                if (command.getReceiver().isCancelled())
+                    {
+                    return true;
+                    }
+                }
+            return false;
+            }
+
+        /** Distributes the output amongst the constituent commands. Should the output have been
+         * cut short, the command that was running gets what there is, and those that never ran
+         * get nothing */
+        @Override public void flush()
+            {
+            byte[] bytes = output.toByteArray();
+            int ibSection = 0;
+            for (int i = 0; i < pending.size(); i++)
+                {
+                AdbShellCommand command = pending.get(i);
+                command.executedCommand = command.getCommand();
+
+                byte[] sectionMarker = ("\n" + sectionMarker(i) + "\n").getBytes(StandardCharsets.US_ASCII);
+                int ibMarker = ShellSession.indexOf(bytes, sectionMarker, ibSection);
+                int ibEnd = ibMarker >= 0 ? ibMarker : bytes.length;
+                if (ibMarker < 0 && ibSection < bytes.length)
+                    {
+                    EventLog.dd(TAG, "output truncated in: %s", command.getCommand());
+                    }
+                if (ibEnd > ibSection)
+                    {
+                    command.getReceiver().addOutput(bytes, ibSection, ibEnd - ibSection);
+                    }
+                command.getReceiver().flush();
+                if (ibMarker >= 0 && !command.getReceiver().isCancelled())
+                    {
+                    command.cacheResult(Arrays.copyOfRange(bytes, ibSection, ibEnd));
+                    }
+                ibSection = ibMarker >= 0 ? ibMarker + sectionMarker.length : bytes.length;
+                }
+            }
+        }
+    }
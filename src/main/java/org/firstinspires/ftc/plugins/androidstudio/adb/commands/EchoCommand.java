@@ -0,0 +1,38 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+
+/**
+ * {@link EchoCommand} has the device's shell echo back a short token: about the cheapest way
+ * there is to find out that adbd and the link to it are alive end to end.
+ */
+@SuppressWarnings("WeakerAccess")
+public class EchoCommand extends AdbShellCommand
+    {
+    protected String token;
+    protected AdbShellCommandResultCollector receiver = new AdbShellCommandResultCollector();
+
+    /** The token should need no quoting */
+    public EchoCommand(IDevice device, String token)
+        {
+        super(device);
+        this.token = token;
+        }
+
+    @Override public String getCommand()
+        {
+        return "echo " + token;
+        }
+
+    @Override public IShellOutputReceiver getReceiver()
+        {
+        return receiver;
+        }
+
+    public boolean isEchoed()
+        {
+        String result = receiver.getResult();
+        return result != null && token.equals(result.trim());
+        }
+    }
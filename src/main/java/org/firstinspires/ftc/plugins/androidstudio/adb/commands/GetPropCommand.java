@@ -1,14 +1,13 @@
 package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
 
 import com.android.ddmlib.IDevice;
-import com.android.ddmlib.MultiLineReceiver;
-import org.firstinspires.ftc.plugins.androidstudio.util.AdbCommunicationException;
-import org.firstinspires.ftc.plugins.androidstudio.util.StringUtil;
+import com.android.ddmlib.IShellOutputReceiver;
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * {@link GetPropCommand} returns the map of all properties available on the device.
@@ -18,17 +17,43 @@ public class GetPropCommand extends AdbShellCommand
     {
     public static final String TAG = "GetPropCommand";
 
-    protected Map<String, String> properties = new HashMap<>();
+    /** Property names we look up often enough that it's worth sharing the one copy of each */
+    protected static final String[] internedKeys =
+        {
+        Configuration.PROP_USB_SERIAL_NUMBER,
+        Configuration.PROP_BUILD_VERSION,
+        Configuration.PROP_BUILD_API_LEVEL,
+        Configuration.PROP_BUILD_CODENAME,
+        Configuration.PROP_DEBUGGABLE,
+        Configuration.PROP_WLAN_STATUS,
+        Configuration.PROP_WLAN_IP_ADDRESS,
+        Configuration.PROP_ADB_TCP_PORT,
+        };
+    protected static final byte[][] internedKeyBytes = new byte[internedKeys.length][];
+    static
+        {
+        for (int i = 0; i < internedKeys.length; i++)
+            {
+            internedKeyBytes[i] = internedKeys[i].getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+    protected Map<String, String> properties = new HashMap<>(1024);
+    protected Receiver receiver = new Receiver();
 
     public GetPropCommand(IDevice device)
         {
         super(device);
         }
 
-    public void execute() throws AdbCommunicationException
+    @Override public String getCommand()
+        {
+        return "getprop";
+        }
+
+    @Override public IShellOutputReceiver getReceiver()
         {
-        Receiver receiver = new Receiver();
-        executeShellCommand("getprop", receiver);
+        return receiver;
         }
 
     public Map<String,String> getProperties()
@@ -36,38 +61,144 @@ public class GetPropCommand extends AdbShellCommand
         return properties;
         }
 
-    protected class Receiver extends MultiLineReceiver
+    /**
+     * Parses 'getprop' output directly from the bytes as they arrive, one byte at a time, so
+     * that lines may straddle the chunks we're given. Each line looks like
+     *
+     *      [dhcp.wlan0.ipaddress]: [192.168.0.20]
+     *
+     * The key runs to the first ']', and the value to the last ']' on the line; both are trimmed.
+     * Lines that don't fit that pattern are ignored.
+     */
+    protected class Receiver implements IShellOutputReceiver
         {
-        protected static final String GETPROP_PATTERN = "^\\[([^]]+)\\]\\:\\s*\\[(.*)\\]$";
-        protected Pattern pattern = Pattern.compile(GETPROP_PATTERN);
+        protected static final int LINE_START = 0;
+        protected static final int KEY = 1;
+        protected static final int COLON = 2;
+        protected static final int VALUE_START = 3;
+        protected static final int VALUE = 4;
+        protected static final int SKIP_LINE = 5;
+
+        protected int state = LINE_START;
+        protected byte[] key = new byte[64];
+        protected int cbKey = 0;
+        protected byte[] value = new byte[256];
+        protected int cbValue = 0;
 
         @Override public boolean isCancelled()
             {
             return false;
             }
 
-        @Override
-        public void processNewLines(String[] lines)
+        @Override public void addOutput(byte[] data, int offset, int length)
             {
-            for (String line : lines)
+            for (int ib = offset; ib < offset + length; ib++)
                 {
-                if (StringUtil.isNullOrEmpty(line) || line.startsWith("#") || line.startsWith("$"))
+                byte b = data[ib];
+                if (b == '\n')
                     {
+                    if (state == VALUE) endLine();
+                    state = LINE_START;
                     continue;
                     }
 
-                Matcher matcher = pattern.matcher(line);
-                if (matcher.find())
+                switch (state)
+                    {
+                    case LINE_START:
+                        if (b == '[')
+                            {
+                            cbKey = 0;
+                            state = KEY;
+                            }
+                        else if (!isWhitespace(b))
+                            state = SKIP_LINE;
+                        break;
+                    case KEY:
+                        if (b == ']')
+                            state = COLON;
+                        else
+                            key = append(key, cbKey++, b);
+                        break;
+                    case COLON:
+                        state = b == ':' ? VALUE_START : SKIP_LINE;
+                        break;
+                    case VALUE_START:
+                        if (b == '[')
+                            {
+                            cbValue = 0;
+                            state = VALUE;
+                            }
+                        else if (!isWhitespace(b))
+                            state = SKIP_LINE;
+                        break;
+                    case VALUE:
+                        value = append(value, cbValue++, b);
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            }
+
+        @Override public void flush()
+            {
+            if (state == VALUE) endLine();
+            state = LINE_START;
+            }
+
+        protected void endLine()
+            {
+            int cb = cbValue;
+            while (cb > 0 && isWhitespace(value[cb-1])) cb--;
+            if (cb == 0 || value[cb-1] != ']')
+                {
+                return;
+                }
+            cb--;
+
+            int ibKeyStart = 0, ibKeyEnd = cbKey;
+            while (ibKeyStart < ibKeyEnd && isWhitespace(key[ibKeyStart])) ibKeyStart++;
+            while (ibKeyEnd > ibKeyStart && isWhitespace(key[ibKeyEnd-1])) ibKeyEnd--;
+            int ibValueStart = 0;
+            while (ibValueStart < cb && isWhitespace(value[ibValueStart])) ibValueStart++;
+            while (cb > ibValueStart && isWhitespace(value[cb-1])) cb--;
+
+            if (ibKeyEnd > ibKeyStart)
+                {
+                properties.put(keyString(ibKeyStart, ibKeyEnd), new String(value, ibValueStart, cb - ibValueStart, StandardCharsets.UTF_8));
+                }
+            }
+
+        protected String keyString(int ibStart, int ibEnd)
+            {
+            int cb = ibEnd - ibStart;
+            outer:
+            for (int i = 0; i < internedKeyBytes.length; i++)
+                {
+                byte[] candidate = internedKeyBytes[i];
+                if (candidate.length != cb) continue;
+                for (int j = 0; j < cb; j++)
                     {
-                    String key = matcher.group(1).trim();
-                    String value = matcher.group(2).trim();
-                    if (key.length() > 0)
-                        {
-                        properties.put(key, value);
-                        }
+                    if (candidate[j] != key[ibStart + j]) continue outer;
                     }
+                return internedKeys[i];
                 }
+            return new String(key, ibStart, cb, StandardCharsets.UTF_8);
+            }
+
+        protected boolean isWhitespace(byte b)
+            {
+            return b >= 0 && b <= ' ';    // as per String.trim()
             }
 
+        protected byte[] append(byte[] buffer, int index, byte b)
+            {
+            if (index == buffer.length)
+                {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            buffer[index] = b;
+            return buffer;
+            }
         }
     }
@@ -1,7 +1,8 @@
 package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
 
 import com.android.ddmlib.IDevice;
-import org.firstinspires.ftc.plugins.androidstudio.util.AdbCommunicationException;
+import com.android.ddmlib.IShellOutputReceiver;
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
 
 import java.util.Locale;
 
@@ -24,9 +25,25 @@ public class GetSettingCommand extends AdbShellCommand
         this.setting = setting;
         }
 
-    public void execute() throws AdbCommunicationException
+    @Override public String getCommand()
         {
-        executeShellCommand(String.format(Locale.ROOT, "settings get %s %s", namespace, setting), receiver);
+        return String.format(Locale.ROOT, "settings get %s %s", namespace, setting);
+        }
+
+    @Override public IShellOutputReceiver getReceiver()
+        {
+        return receiver;
+        }
+
+    /** Settings seldom change, so the answer may be reused for a while */
+    @Override protected String getResultCacheKey()
+        {
+        return getCommand();
+        }
+
+    @Override protected long getMsResultCacheTtl()
+        {
+        return Configuration.msSettingResultTtl;
         }
 
     public String getResult()
@@ -5,25 +5,48 @@ import com.android.ddmlib.IDevice;
 import com.intellij.openapi.project.Project;
 import org.firstinspires.ftc.plugins.androidstudio.Configuration;
 import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.FailureCache;
+import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
+import org.firstinspires.ftc.plugins.androidstudio.util.ThreadPool;
 import org.jetbrains.android.sdk.AndroidSdkUtils;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
- * Functionality we access by executing the local ADB command rather than trying to cons up
- * our own socket data to do so. Necessary as not all the ADB socket protocol is supported through
- * publicly available function in {@link AndroidDebugBridge}, etc.
+ * Functionality we access by talking to the local ADB server ourselves rather than through
+ * {@link AndroidDebugBridge}, etc, as not all the ADB socket protocol is supported through
+ * publicly available function there.
  *
- * This is just the easier way to go.
+ * We speak the host protocol directly (see {@link AdbHostProtocol}) where we can, as that's
+ * much cheaper than launching a process. If the server can't be reached that way, we fall
+ * back to executing the local ADB command.
+ *
+ * Each operation is available asynchronously: the returned futures are always completed
+ * within their deadline, and cancelling one abandons the underlying socket or kills the
+ * underlying process. The synchronous forms just wait on their asynchronous counterparts.
+ *
+ * Concurrent requests for the same operation on the same target (say, two connects to one
+ * address) are coalesced: the later requests attach to the one already in flight rather
+ * than launching another of their own.
  */
 @SuppressWarnings("WeakerAccess")
 public class HostAdb
@@ -33,6 +56,25 @@ public class HostAdb
     //----------------------------------------------------------------------------------------------
 
     protected final File adbExecutable;
+    protected final AdbHostProtocol hostProtocol;
+
+    /** Operations currently in flight, keyed by verb and target */
+    protected final Map<String, InFlight> inFlight = new HashMap<>();
+    protected final AtomicLong launchCount = new AtomicLong(0);
+    protected final AtomicLong coalescedCount = new AtomicLong(0);
+
+    /** An in-flight operation, together with a count of the callers awaiting it. When the
+     * last of those callers loses interest, the operation itself is abandoned. */
+    protected static class InFlight
+        {
+        final CompletableFuture<Boolean> result;
+        int callers = 0;
+
+        InFlight(CompletableFuture<Boolean> result)
+            {
+            this.result = result;
+            }
+        }
 
     //----------------------------------------------------------------------------------------------
     // Construction
@@ -40,7 +82,13 @@ public class HostAdb
 
     public HostAdb(Project project)
         {
-        this.adbExecutable = AndroidSdkUtils.getAdb(project).getAbsoluteFile();
+        this(AndroidSdkUtils.getAdb(project).getAbsoluteFile(), new AdbHostProtocol());
+        }
+
+    public HostAdb(File adbExecutable, AdbHostProtocol hostProtocol)
+        {
+        this.adbExecutable = adbExecutable;
+        this.hostProtocol = hostProtocol;
         }
 
     //----------------------------------------------------------------------------------------------
@@ -52,6 +100,23 @@ public class HostAdb
         return adbExecutable;
         }
 
+    public AdbHostProtocol getHostProtocol()
+        {
+        return hostProtocol;
+        }
+
+    /** How many operations we have actually launched */
+    public long getLaunchCount()
+        {
+        return launchCount.get();
+        }
+
+    /** How many requests were satisfied by an operation that was already in flight */
+    public long getCoalescedCount()
+        {
+        return coalescedCount.get();
+        }
+
     //----------------------------------------------------------------------------------------------
     // Operations
     //----------------------------------------------------------------------------------------------
@@ -65,8 +130,13 @@ public class HostAdb
      * request has been initiated, not that it has been completed */
     public boolean tcpip(IDevice device, int port)
         {
+        return await(tcpipAsync(device, port), "tcpip " + device.getSerialNumber());
+        }
+
+    public CompletableFuture<Boolean> tcpipAsync(IDevice device, int port)
+        {
+        String serialNumber = device.getSerialNumber();
         String payload = String.format(Locale.ROOT,"tcpip %d", port);
-        String result = executeSystemCommand(composeCommand(device, payload));
 
         /* Example executions:
 
@@ -79,7 +149,11 @@ public class HostAdb
             C:\Users\bob>adb -s 2a2839x9 tcpip 5555
             error: device '2a2839x9' not found
          */
-        return !result.contains("error");   // hope that no serial number has 'error' in it
+        return executeAsync(String.format(Locale.ROOT, "tcpip %s %d", serialNumber, port), Configuration.msAdbTimeoutSlow,
+                socketObserver -> hostProtocol.tcpip(serialNumber, port, Configuration.msAdbTimeoutSlow, socketObserver),
+                response -> response.isOkay() && !response.message.contains("error"),
+                composeCommand(device, payload),
+                result -> !result.contains("error"));   // hope that no serial number has 'error' in it
         }
 
     public boolean connect(InetAddress inetAddress)
@@ -93,11 +167,29 @@ public class HostAdb
         }
 
     /** Note: this can take a *very* long time if there's no device reachable at the
-     * indicated address */
+     * indicated address. A timeout of zero means {@link Configuration#msAdbCommandDeadline}.
+     * Addresses that have recently failed (see {@link FailureCache}) aren't tried at all. */
     public boolean connect(InetSocketAddress inetSocketAddress, int msTimeout)
         {
-        String address = String.format("%s:%d", inetSocketAddress.getAddress().getHostAddress(), inetSocketAddress.getPort());
-        String result = executeSystemCommand(composeCommand(null, "connect " + address), msTimeout);
+        return await(connectAsync(inetSocketAddress, msTimeout), "connect " + inetSocketAddress);
+        }
+
+    public CompletableFuture<Boolean> connectAsync(InetSocketAddress inetSocketAddress)
+        {
+        return connectAsync(inetSocketAddress, 0);
+        }
+
+    public CompletableFuture<Boolean> connectAsync(InetSocketAddress inetSocketAddress, int msTimeout)
+        {
+        String address = IpUtil.toString(inetSocketAddress);     // bracketed if IPv6, as adb expects
+        int msDeadline = deadline(msTimeout);
+
+        FailureCache failureCache = FailureCache.getInstance();
+        if (failureCache.isBackingOff(inetSocketAddress.getAddress()))
+            {
+            EventLog.dd(this, "not connecting: %s: recently unreachable", address);
+            return CompletableFuture.completedFuture(false);
+            }
 
         /* Example executions:
 
@@ -115,13 +207,29 @@ public class HostAdb
             C:\Users\bob>adb connect /192.168.49.1:5555
             unable to connect to /192.168.49.1:5555: cannot resolve host '/192.168.49.1' and port 5555: No such host is known. (11001)
          */
-        return result.contains("connected to " + address);
+        return executeAsync("connect " + address, msDeadline,
+                socketObserver -> hostProtocol.connect(inetSocketAddress, msDeadline, socketObserver),
+                response -> response.isOkay() && response.message.contains("connected to " + address),
+                composeCommand(null, "connect " + address),
+                result -> result.contains("connected to " + address),
+                connected ->
+                    {
+                    if (connected)
+                        failureCache.noteSuccess(inetSocketAddress.getAddress());
+                    else
+                        failureCache.noteFailure(inetSocketAddress.getAddress());
+                    });
         }
 
     public boolean disconnect(IDevice device)
         {
-        String payload = String.format("disconnect %s", device.getSerialNumber());
-        String result = executeSystemCommand(composeCommand(null, payload));
+        return await(disconnectAsync(device), "disconnect " + device.getSerialNumber());
+        }
+
+    public CompletableFuture<Boolean> disconnectAsync(IDevice device)
+        {
+        String serialNumber = device.getSerialNumber();
+        String payload = String.format("disconnect %s", serialNumber);
 
         /* Example executions:
 
@@ -134,14 +242,206 @@ public class HostAdb
             C:\Users\bob>adb disconnect 2a28399
             error: no such device '2a28399:5555'
          */
+        return executeAsync("disconnect " + serialNumber, Configuration.msAdbTimeoutFast,
+                socketObserver -> hostProtocol.disconnect(serialNumber, Configuration.msAdbTimeoutFast, socketObserver),
+                AdbHostProtocol.Response::isOkay,
+                composeCommand(null, payload),
+                result -> !result.contains("error"));
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Execution
+    //----------------------------------------------------------------------------------------------
+
+    protected CompletableFuture<Boolean> executeAsync(String tag, int msDeadline,
+            Function<Consumer<Socket>, AdbHostProtocol.Response> protocolRequest,
+            Function<AdbHostProtocol.Response, Boolean> protocolResult,
+            String command,
+            Function<String, Boolean> commandResult)
+        {
+        return executeAsync(tag, msDeadline, protocolRequest, protocolResult, command, commandResult, null);
+        }
+
+    /** Carries out a request, or attaches to an identical one already in flight. The tag
+     * identifies the operation: requests with equal tags are considered identical. The outcome
+     * observer, if any, is told the result of each operation actually launched (once, no matter
+     * how many callers attach to it). */
+    protected CompletableFuture<Boolean> executeAsync(String tag, int msDeadline,
+            Function<Consumer<Socket>, AdbHostProtocol.Response> protocolRequest,
+            Function<AdbHostProtocol.Response, Boolean> protocolResult,
+            String command,
+            Function<String, Boolean> commandResult,
+            @Nullable Consumer<Boolean> outcomeObserver)
+        {
+        InFlight operation;
+        synchronized (inFlight)
+            {
+            operation = inFlight.get(tag);
+            if (operation == null)
+                {
+                launchCount.incrementAndGet();
+                operation = new InFlight(launchAsync(tag, msDeadline, protocolRequest, protocolResult, command, commandResult));
+                inFlight.put(tag, operation);
+                InFlight launched = operation;
+                operation.result.whenComplete((t, throwable) ->
+                    {
+                    synchronized (inFlight)
+                        {
+                        inFlight.remove(tag, launched);
+                        }
+                    });
+                if (outcomeObserver != null)
+                    {
+                    operation.result.thenAccept(outcomeObserver);
+                    }
+                }
+            else
+                {
+                coalescedCount.incrementAndGet();
+                EventLog.dd(this, "coalesced: %s", tag);
+                }
+            operation.callers++;
+            }
 
-        return !result.contains("error");
+        // Each caller gets their own view of the result, so that one caller cancelling
+        // doesn't pull the rug out from under any others
+        InFlight attached = operation;
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        attached.result.whenComplete((t, throwable) ->
+            {
+            if (throwable != null)
+                result.completeExceptionally(throwable);
+            else
+                result.complete(t);
+            });
+        result.whenComplete((t, throwable) ->
+            {
+            boolean abandon;
+            synchronized (inFlight)
+                {
+                abandon = --attached.callers == 0 && result.isCancelled();
+                }
+            if (abandon)
+                {
+                attached.result.cancel(true);
+                }
+            });
+        return result;
+        }
+
+    /** Carries out a request using the host protocol if we can, falling back to running the adb
+     * command if the server isn't available to us that way. The result is false if the deadline
+     * passes before we hear back. */
+    protected CompletableFuture<Boolean> launchAsync(String tag, int msDeadline,
+            Function<Consumer<Socket>, AdbHostProtocol.Response> protocolRequest,
+            Function<AdbHostProtocol.Response, Boolean> protocolResult,
+            String command,
+            Function<String, Boolean> commandResult)
+        {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (Configuration.useAdbHostProtocol)
+            {
+            ThreadPool.getDefault().execute(() ->
+                {
+                if (result.isDone()) return;
+                AdbHostProtocol.Response response = protocolRequest.apply(socket -> closeWhenDone(result, socket));
+                if (result.isDone())
+                    {
+                    // Our deadline passed or we were cancelled, which closed the socket under the
+                    // request. The caller has had their answer: we mustn't now go and run the command.
+                    return;
+                    }
+                if (response.isAvailable())
+                    {
+                    EventLog.dd(this, "%s: %s", tag, response);
+                    result.complete(protocolResult.apply(response));
+                    }
+                else
+                    {
+                    launchSystemCommand(command, msDeadline, commandResult, result);
+                    }
+                });
+            }
+        else
+            {
+            launchSystemCommand(command, msDeadline, commandResult, result);
+            }
+        return completeOnTimeout(result, false, msDeadline);
+        }
+
+    /** Runs the command, completing the result from its output. Completing the result first
+     * (cancellation, the deadline) kills the command's process. */
+    protected void launchSystemCommand(String command, int msDeadline, Function<String, Boolean> commandResult, CompletableFuture<Boolean> result)
+        {
+        if (result.isDone()) return;
+        CompletableFuture<String> process = executeSystemCommandAsync(command, msDeadline);
+        propagate(process.thenApply(commandResult), result);
+        result.whenComplete((t, throwable) -> process.cancel(true));   // harmless if already done
+        }
+
+    protected <T> boolean await(CompletableFuture<T> future, String tag)
+        {
+        try {
+            return Boolean.TRUE.equals(future.get());
+            }
+        catch (InterruptedException e)
+            {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupt executing: " + tag, e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("exception executing: " + tag, e.getCause());
+            }
+        catch (CancellationException e)
+            {
+            return false;
+            }
         }
 
     //----------------------------------------------------------------------------------------------
     // Utility
     //----------------------------------------------------------------------------------------------
 
+    protected int deadline(int msTimeout)
+        {
+        return msTimeout == 0 ? Configuration.msAdbCommandDeadline : msTimeout;
+        }
+
+    protected static <T> CompletableFuture<T> completeOnTimeout(CompletableFuture<T> future, T value, int msTimeout)
+        {
+        ScheduledFuture<?> timer = ThreadPool.getScheduler().schedule(() -> future.complete(value), msTimeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((t, throwable) -> timer.cancel(false));
+        return future;
+        }
+
+    protected static <T> void propagate(CompletableFuture<T> source, CompletableFuture<T> target)
+        {
+        source.whenComplete((t, throwable) ->
+            {
+            if (throwable != null)
+                target.completeExceptionally(throwable);
+            else
+                target.complete(t);
+            });
+        target.whenComplete((t, throwable) -> source.cancel(true));    // harmless if already done
+        }
+
+    protected static void closeWhenDone(CompletableFuture<?> future, Socket socket)
+        {
+        future.whenComplete((t, throwable) ->
+            {
+            try {
+                socket.close();
+                }
+            catch (IOException e)
+                {
+                // ignore
+                }
+            });
+        }
+
     protected String composeCommand(@Nullable IDevice device, String command)
         {
         return adbExecutable.getAbsolutePath()
@@ -155,44 +455,81 @@ public class HostAdb
         return executeSystemCommand(command, 0);
         }
 
+    /** A timeout of zero means {@link Configuration#msAdbCommandDeadline} */
     protected String executeSystemCommand(String command, int msTimeout)
         {
-        StringBuilder result = new StringBuilder();
+        CompletableFuture<String> future = executeSystemCommandAsync(command, deadline(msTimeout));
+        try {
+            return future.get();
+            }
+        catch (InterruptedException e)
+            {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupt executing command: " + command, e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("exception executing command: " + command, e.getCause());
+            }
+        }
+
+    /** Runs the command, collecting both its stdout and its stderr as they're produced, so that
+     * a chatty process can never block on a full pipe. The result completes when both streams
+     * have been exhausted. Completing the result by any other means (cancellation, a deadline,
+     * etc) kills the process. */
+    protected CompletableFuture<String> executeSystemCommandAsync(String command, int msDeadline)
+        {
+        CompletableFuture<String> result = new CompletableFuture<>();
         try
             {
             EventLog.dd(this, "executing: %s", command);
             Process process = Runtime.getRuntime().exec(command);
-            if (msTimeout == 0)
+            result.whenComplete((s, throwable) ->
                 {
-                process.waitFor();
-                }
-            else
-                {
-                if (!process.waitFor(msTimeout, TimeUnit.MILLISECONDS))
+                if (process.isAlive())
                     {
-                    process.destroy();
-                    return "";
+                    EventLog.dd(this, "killing: %s", command);
+                    process.destroyForcibly();
                     }
-                }
-            //
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            for (String line : reader.lines().collect(Collectors.toList()))
-                {
-                if (result.length() > 0) result.append("\n");
-                result.append(line);
-                }
-            reader.close();
-            }
-        catch (InterruptedException e)
-            {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("interrupt executing command: " + command, e);
+                });
+
+            CompletableFuture<String> stdout = drain(process.getInputStream());
+            CompletableFuture<String> stderr = drain(process.getErrorStream());
+            stdout.thenCombine(stderr, (out, err) -> out.isEmpty() ? err : (err.isEmpty() ? out : out + "\n" + err))
+                .whenComplete((s, throwable) ->
+                    {
+                    if (throwable != null)
+                        result.completeExceptionally(new RuntimeException("exception executing command: " + command, throwable));
+                    else
+                        result.complete(s);
+                    });
             }
         catch (IOException e)
             {
-            throw new RuntimeException("exception executing command: " + command, e);
+            result.completeExceptionally(new RuntimeException("exception executing command: " + command, e));
             }
-        return result.toString();
+        return completeOnTimeout(result, "", msDeadline);
         }
 
+    protected CompletableFuture<String> drain(InputStream inputStream)
+        {
+        return CompletableFuture.supplyAsync(() ->
+            {
+            StringBuilder result = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream)))
+                {
+                for (String line = reader.readLine(); line != null; line = reader.readLine())
+                    {
+                    if (result.length() > 0) result.append("\n");
+                    result.append(line);
+                    }
+                }
+            catch (IOException e)
+                {
+                // The process was killed out from under us: take what we have
+                }
+            return result.toString();
+            }, ThreadPool.getDefault());
+        }
     }
@@ -1,8 +1,9 @@
 package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
 
 import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
 import org.firstinspires.ftc.plugins.androidstudio.adb.AndroidDeviceHandle;
-import org.firstinspires.ftc.plugins.androidstudio.util.AdbCommunicationException;
 import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
 import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
 import org.jetbrains.annotations.Nullable;
@@ -32,9 +33,25 @@ public class IfConfigCommand extends AdbShellCommand
         this.intf = intf;
         }
 
-    public void execute() throws AdbCommunicationException
+    @Override public String getCommand()
         {
-        executeShellCommand("ifconfig " + intf, receiver);
+        return "ifconfig " + intf;
+        }
+
+    @Override public IShellOutputReceiver getReceiver()
+        {
+        return receiver;
+        }
+
+    /** An interface's configuration seldom changes, so the answer may be reused for a while */
+    @Override protected String getResultCacheKey()
+        {
+        return getCommand();
+        }
+
+    @Override protected long getMsResultCacheTtl()
+        {
+        return Configuration.msIfConfigResultTtl;
         }
 
     // Example Android responses:
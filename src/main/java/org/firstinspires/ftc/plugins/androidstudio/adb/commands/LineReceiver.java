@@ -0,0 +1,169 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * {@link LineReceiver} splits the output of a shell command into lines as it arrives, handing
+ * each to {@link #onLine(String)} as soon as it's complete, so that those interested needn't
+ * wait for the command to finish. Should {@link #onLine(String)} return false, or {@link #stop()}
+ * be called, we report ourselves cancelled, and the command is abandoned.
+ *
+ * Lines are split at the byte level, so multi-byte characters may straddle the chunks we're
+ * given. A trailing '\r' is removed. Lines longer than {@link #maxLineBytes} are cut short,
+ * the excess being discarded, so that a command that never emits a newline can't make us
+ * buffer without limit.
+ */
+@SuppressWarnings("WeakerAccess")
+public abstract class LineReceiver implements IShellOutputReceiver
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected final int maxLineBytes;
+    protected boolean trimLine = true;
+    protected byte[] line = new byte[256];
+    protected int cbLine = 0;
+    protected boolean lineTruncated = false;
+    protected long cbReceived = 0;
+    protected int truncatedLineCount = 0;
+    protected volatile boolean stopped = false;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    protected LineReceiver()
+        {
+        this(Configuration.shellOutputMaxLineBytes);
+        }
+
+    protected LineReceiver(int maxLineBytes)
+        {
+        this.maxLineBytes = Math.max(1, maxLineBytes);
+        }
+
+    /** Returns a receiver that hands each line to the callback for as long as it returns true */
+    public static LineReceiver forEachLine(Predicate<String> callback)
+        {
+        return new LineReceiver()
+            {
+            @Override protected boolean onLine(String line)
+                {
+                return callback.test(line);
+                }
+            };
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    /** Whether lines are trimmed of surrounding whitespace before being processed (they are by default) */
+    public LineReceiver setTrimLine(boolean trimLine)
+        {
+        this.trimLine = trimLine;
+        return this;
+        }
+
+    /** The number of bytes of output we've received, whether or not we kept them */
+    public long getByteCount()
+        {
+        return cbReceived;
+        }
+
+    /** The number of lines that were cut short as being overly long */
+    public int getTruncatedLineCount()
+        {
+        return truncatedLineCount;
+        }
+
+    public boolean isStopped()
+        {
+        return stopped;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Abandons the command: we'll process no more of its output */
+    public void stop()
+        {
+        stopped = true;
+        }
+
+    @Override public boolean isCancelled()
+        {
+        return stopped;
+        }
+
+    @Override public void addOutput(byte[] data, int offset, int length)
+        {
+        cbReceived += length;
+        for (int ib = offset; ib < offset + length && !stopped; ib++)
+            {
+            byte b = data[ib];
+            if (b == '\n')
+                {
+                endLine();
+                }
+            else if (cbLine < maxLineBytes)
+                {
+                if (cbLine == line.length)
+                    {
+                    line = Arrays.copyOf(line, Math.min(maxLineBytes, line.length * 2));
+                    }
+                line[cbLine++] = b;
+                }
+            else if (!lineTruncated)
+                {
+                lineTruncated = true;
+                truncatedLineCount++;
+                }
+            }
+        }
+
+    @Override public void flush()
+        {
+        if ((cbLine > 0 || lineTruncated) && !stopped)
+            {
+            endLine();
+            }
+        done();
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Subclass responsibility
+    //----------------------------------------------------------------------------------------------
+
+    /** Processes one line of output. Returns false if no more output is wanted. */
+    protected abstract boolean onLine(String line);
+
+    /** Called once all the output has been delivered, or the command abandoned */
+    protected void done()
+        {
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    protected void endLine()
+        {
+        int cb = cbLine;
+        if (cb > 0 && line[cb-1] == '\r') cb--;
+        String string = new String(line, 0, cb, StandardCharsets.UTF_8);
+        cbLine = 0;
+        lineTruncated = false;
+        if (!onLine(trimLine ? string.trim() : string))
+            {
+            stop();
+            }
+        }
+    }
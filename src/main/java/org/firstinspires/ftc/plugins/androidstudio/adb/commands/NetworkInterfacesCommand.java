@@ -0,0 +1,299 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.firstinspires.ftc.plugins.androidstudio.util.IpUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link NetworkInterfacesCommand} retrieves the state of all of the device's network interfaces
+ * at once, parsing it into a {@link Table}. We use 'ip -o link' and 'ip -o addr' where we can,
+ * as their output is one line per fact; on devices without 'ip', we run 'ifconfig' on each of
+ * the interfaces listed in /proc/net/dev.
+ *
+ * Example 'ip' responses:
+ *
+ *      3: p2p0: <BROADCAST,MULTICAST,UP,LOWER_UP> mtu 1500 qdisc pfifo_fast state UP qlen 1000\    link/ether e2:98:61:d7:00:93 brd ff:ff:ff:ff:ff:ff
+ *      3: p2p0    inet 192.168.49.1/24 brd 192.168.49.255 scope global p2p0\       valid_lft forever preferred_lft forever
+ *      3: p2p0    inet6 fe80::e098:61ff:fed7:93/64 scope link \       valid_lft forever preferred_lft forever
+ *
+ * See {@link IfConfigCommand} for the 'ifconfig' formats.
+ */
+@SuppressWarnings("WeakerAccess")
+public class NetworkInterfacesCommand extends AdbShellCommand
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "NetworkInterfacesCommand";
+
+    protected static final String COMMAND =
+            "if ip -o link >/dev/null 2>&1; then ip -o link; ip -o addr; "
+          + "else while read -r line; do case \"$line\" in *:*) ifconfig \"${line%%:*}\";; esac; done </proc/net/dev; fi";
+
+    protected static final Pattern patternIpLink = Pattern.compile("^\\d+:\\s+(?<name>[^:@\\s]+)(@\\S+)?:\\s+<(?<flags>[^>]*)>");
+    protected static final Pattern patternIpAddr = Pattern.compile("^\\d+:\\s+(?<name>[^:@\\s]+)\\s+inet6?\\s+(?<addr>[0-9a-fA-F.:]+)(/(?<prefix>\\d+))?");
+
+    protected static final Pattern patternIfConfigName   = Pattern.compile("^(?<name>[^:\\s]+):?\\s");
+    protected static final Pattern patternIfConfigInet   = Pattern.compile("(\\sip\\s|inet addr:|inet\\s)(?<addr>[0-9.]+)(.*?(mask\\s|Mask:|netmask\\s)(?<mask>[0-9.]+))?");
+    protected static final Pattern patternIfConfigInet6  = Pattern.compile("inet6 addr:\\s*(?<addr>[0-9a-fA-F:]+)/(?<prefix>\\d+)");
+    protected static final Pattern patternIfConfigFlags1 = Pattern.compile("flags\\s\\[(?<flags>[^\\]]*)\\]");
+    protected static final Pattern patternIfConfigFlags2 = Pattern.compile("^\\s+(?<flags>([A-Z]+\\s+)+)\\s*MTU:");
+
+    /** One address of an interface */
+    public static class Address
+        {
+        public final InetAddress inetAddress;
+        public final int prefixLength;
+
+        public Address(InetAddress inetAddress, int prefixLength)
+            {
+            this.inetAddress = inetAddress;
+            this.prefixLength = prefixLength;
+            }
+
+        @Override public String toString()
+            {
+            return String.format(Locale.ROOT, "%s/%d", IpUtil.toString(inetAddress), prefixLength);
+            }
+        }
+
+    /** One network interface. Flags are in lower case. */
+    public static class Interface
+        {
+        public final String name;
+        public final List<Address> addresses;
+        public final Set<String> flags;
+
+        public Interface(String name, List<Address> addresses, Set<String> flags)
+            {
+            this.name = name;
+            this.addresses = Collections.unmodifiableList(new ArrayList<>(addresses));
+            this.flags = Collections.unmodifiableSet(new LinkedHashSet<>(flags));
+            }
+
+        public boolean isUp()
+            {
+            return flags.contains("up");
+            }
+
+        public boolean hasAddress(InetAddress inetAddress)
+            {
+            for (Address address : addresses)
+                {
+                if (address.inetAddress.equals(inetAddress))
+                    {
+                    return true;
+                    }
+                }
+            return false;
+            }
+
+        public @Nullable InetAddress getInet4Address()
+            {
+            for (Address address : addresses)
+                {
+                if (address.inetAddress instanceof Inet4Address)
+                    {
+                    return address.inetAddress;
+                    }
+                }
+            return null;
+            }
+
+        @Override public String toString()
+            {
+            return String.format(Locale.ROOT, "%s%s%s", name, addresses, flags);
+            }
+        }
+
+    /** All of a device's interfaces, keyed by name */
+    public static class Table
+        {
+        public final Map<String, Interface> interfaces;
+
+        public Table(Map<String, Interface> interfaces)
+            {
+            this.interfaces = Collections.unmodifiableMap(new LinkedHashMap<>(interfaces));
+            }
+
+        public @Nullable Interface get(String name)
+            {
+            return interfaces.get(name);
+            }
+
+        @Override public String toString()
+            {
+            return interfaces.values().toString();
+            }
+        }
+
+    protected AdbShellCommandResultCollector receiver = new AdbShellCommandResultCollector();
+    protected @Nullable Table table = null;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public NetworkInterfacesCommand(IDevice device)
+        {
+        super(device);
+        receiver.setTrimLine(false);    // we need the indentation to make sense of ifconfig
+        }
+
+    @Override public String getCommand()
+        {
+        return COMMAND;
+        }
+
+    @Override public IShellOutputReceiver getReceiver()
+        {
+        return receiver;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Parsing
+    //----------------------------------------------------------------------------------------------
+
+    /** Parses the output on first request */
+    public Table getTable()
+        {
+        if (table == null)
+            {
+            table = parse(receiver.getResult());
+            EventLog.dd(TAG, "interfaces=%s", table);
+            }
+        return table;
+        }
+
+    public static Table parse(@Nullable String response)
+        {
+        Map<String, List<Address>> addresses = new LinkedHashMap<>();
+        Map<String, Set<String>> flags = new LinkedHashMap<>();
+        String ifConfigName = null;
+
+        for (String line : response == null ? new String[0] : response.split("\n"))
+            {
+            Matcher matcher;
+            if ((matcher = patternIpLink.matcher(line)).find())
+                {
+                String name = matcher.group("name");
+                addresses.computeIfAbsent(name, ignored -> new ArrayList<>());
+                flags.computeIfAbsent(name, ignored -> new LinkedHashSet<>()).addAll(splitFlags(matcher.group("flags"), ","));
+                }
+            else if ((matcher = patternIpAddr.matcher(line)).find())
+                {
+                InetAddress inetAddress = parseAddress(matcher.group("addr"));
+                if (inetAddress != null)
+                    {
+                    String prefix = matcher.group("prefix");
+                    int defaultPrefix = inetAddress instanceof Inet4Address ? 32 : 128;
+                    addresses.computeIfAbsent(matcher.group("name"), ignored -> new ArrayList<>())
+                            .add(new Address(inetAddress, prefix == null ? defaultPrefix : Integer.parseInt(prefix)));
+                    }
+                }
+            else
+                {
+                // ifconfig: a new interface starts in the first column, its details are indented
+                if (line.length() > 0 && !Character.isWhitespace(line.charAt(0)))
+                    {
+                    ifConfigName = (matcher = patternIfConfigName.matcher(line + " ")).find() ? matcher.group("name") : null;
+                    if (ifConfigName != null)
+                        {
+                        addresses.computeIfAbsent(ifConfigName, ignored -> new ArrayList<>());
+                        flags.computeIfAbsent(ifConfigName, ignored -> new LinkedHashSet<>());
+                        }
+                    }
+                if (ifConfigName != null)
+                    {
+                    parseIfConfigLine(line, addresses.get(ifConfigName), flags.get(ifConfigName));
+                    }
+                }
+            }
+
+        Map<String, Interface> interfaces = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Address>> pair : addresses.entrySet())
+            {
+            Set<String> interfaceFlags = flags.get(pair.getKey());
+            interfaces.put(pair.getKey(), new Interface(pair.getKey(), pair.getValue(), interfaceFlags == null ? Collections.emptySet() : interfaceFlags));
+            }
+        return new Table(interfaces);
+        }
+
+    protected static void parseIfConfigLine(String line, List<Address> addresses, Set<String> flags)
+        {
+        Matcher matcher;
+        if ((matcher = patternIfConfigInet.matcher(line)).find())
+            {
+            InetAddress inetAddress = parseAddress(matcher.group("addr"));
+            String mask = matcher.group("mask");
+            if (inetAddress != null)
+                {
+                addresses.add(new Address(inetAddress, mask == null ? 32 : prefixLength(mask)));
+                }
+            }
+        if ((matcher = patternIfConfigInet6.matcher(line)).find())
+            {
+            InetAddress inetAddress = parseAddress(matcher.group("addr"));
+            if (inetAddress != null)
+                {
+                addresses.add(new Address(inetAddress, Integer.parseInt(matcher.group("prefix"))));
+                }
+            }
+        if ((matcher = patternIfConfigFlags1.matcher(line)).find() || (matcher = patternIfConfigFlags2.matcher(line)).find())
+            {
+            flags.addAll(splitFlags(matcher.group("flags"), "\\s+"));
+            }
+        }
+
+    protected static List<String> splitFlags(String flags, String separator)
+        {
+        List<String> result = new ArrayList<>();
+        for (String flag : Arrays.asList(flags.trim().toLowerCase(Locale.ROOT).split(separator)))
+            {
+            if (flag.length() > 0) result.add(flag);
+            }
+        return result;
+        }
+
+    protected static @Nullable InetAddress parseAddress(String literalAddress)
+        {
+        try {
+            return IpUtil.parseInetAddress(literalAddress);
+            }
+        catch (RuntimeException e)
+            {
+            return null;
+            }
+        }
+
+    protected static int prefixLength(String mask)
+        {
+        InetAddress inetAddress = parseAddress(mask);
+        int result = 0;
+        if (inetAddress != null)
+            {
+            for (byte b : inetAddress.getAddress())
+                {
+                result += Integer.bitCount(b & 0xFF);
+                }
+            }
+        return result;
+        }
+    }
@@ -0,0 +1,88 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+
+/**
+ * {@link PassThroughReceiver} hands the output of a shell command to a {@link Consumer} in the
+ * very buffers in which it arrives, neither copying nor decoding it, for those who'd parse or
+ * forward it themselves. At most maxBytes are passed along; should the command say more, or
+ * should the consumer decline further output, the command is abandoned.
+ */
+@SuppressWarnings("WeakerAccess")
+public class PassThroughReceiver implements IShellOutputReceiver
+    {
+    /** The buffer is only valid for the duration of the call */
+    public interface Consumer
+        {
+        /** Returns false if no more output is wanted */
+        boolean accept(byte[] data, int offset, int length);
+
+        default void done()
+            {
+            }
+        }
+
+    protected final Consumer consumer;
+    protected final long maxBytes;
+    protected long cbPassed = 0;
+    protected boolean truncated = false;
+    protected volatile boolean stopped = false;
+
+    public PassThroughReceiver(Consumer consumer)
+        {
+        this(consumer, Configuration.shellOutputMaxBytes);
+        }
+
+    public PassThroughReceiver(Consumer consumer, long maxBytes)
+        {
+        this.consumer = consumer;
+        this.maxBytes = Math.max(0, maxBytes);
+        }
+
+    public long getByteCount()
+        {
+        return cbPassed;
+        }
+
+    /** Whether the output ran past maxBytes */
+    public boolean isTruncated()
+        {
+        return truncated;
+        }
+
+    public void stop()
+        {
+        stopped = true;
+        }
+
+    @Override public boolean isCancelled()
+        {
+        return stopped;
+        }
+
+    @Override public void addOutput(byte[] data, int offset, int length)
+        {
+        if (stopped) return;
+
+        int cb = (int)Math.min(length, maxBytes - cbPassed);
+        if (cb < length)
+            {
+            truncated = true;
+            stopped = true;
+            }
+        if (cb > 0)
+            {
+            cbPassed += cb;
+            if (!consumer.accept(data, offset, cb))
+                {
+                stopped = true;
+                }
+            }
+        }
+
+    @Override public void flush()
+        {
+        consumer.done();
+        }
+    }
@@ -0,0 +1,299 @@
+package org.firstinspires.ftc.plugins.androidstudio.adb.commands;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+import org.firstinspires.ftc.plugins.androidstudio.util.EventLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * {@link ShellSession} keeps a single shell open on a device and runs successive commands
+ * in it, saving the cost of opening a new adb transport stream for each one. That matters
+ * most over Wi-Fi, where every new stream costs us several round trips.
+ *
+ * We open the stream with 'shell:sh' rather than a bare 'shell:' so as to avoid being given
+ * a pty, which would echo our input back at us. Each command is followed by a printf of a
+ * sentinel line that's unique to that command; everything up to the sentinel is the command's
+ * output, which is handed to the command's receiver just as ddmlib would have. A command that
+ * times out leaves the stream in an unknown state, so we close the session; the next command
+ * will open a new one.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ShellSession
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "ShellSession";
+
+    /** How often, while waiting on output, we check whether the command has been cancelled */
+    protected static final int msCancellationPoll = 100;
+
+    /** How long, past the sentinel itself, we'll let the sentinel line (the exit status) be */
+    protected static final int cbSentinelLineMax = 32;
+
+    /** Thrown when we can't get a session going at all, as distinct from a command failing in
+     * one. Callers can reasonably go and try the command some other way. */
+    public static class UnavailableException extends IOException
+        {
+        public UnavailableException(String message, Throwable cause)
+            {
+            super(message, cause);
+            }
+        }
+
+    protected final String serialNumber;
+    protected final InetSocketAddress serverAddress;
+    protected final String nonce = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+    protected volatile @Nullable Socket socket = null;
+    protected int commandCount = 0;
+    protected int openCount = 0;
+    protected boolean closed = false;
+    /** Whether the command in progress has yet handed any output to its receiver */
+    protected boolean deliveredOutput = false;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public ShellSession(String serialNumber, InetSocketAddress serverAddress)
+        {
+        this.serialNumber = serialNumber;
+        this.serverAddress = serverAddress;
+        }
+
+    /** Not synchronized, so that we can abandon a command that's in progress */
+    public void close()
+        {
+        closed = true;
+        closeSocket();
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public String getSerialNumber()
+        {
+        return serialNumber;
+        }
+
+    public synchronized int getCommandCount()
+        {
+        return commandCount;
+        }
+
+    /** How many times we've had to (re)open the underlying stream */
+    public synchronized int getOpenCount()
+        {
+        return openCount;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Runs the command, delivering its output (stdout and stderr combined) to the receiver.
+     * Should the session turn out to have died since last we used it, we restart it and try
+     * once more. msTimeout bounds how long we'll wait for the next bit of output.
+     *
+     * @throws UnavailableException if no session could be established
+     * @throws SocketTimeoutException if the command didn't complete in time
+     * @throws IOException if the session died during the command
+     */
+    public synchronized void execute(String command, IShellOutputReceiver receiver, int msTimeout) throws IOException
+        {
+        if (closed) throw new UnavailableException("session closed", null);
+
+        boolean fresh = socket == null;
+        try {
+            executeOnce(command, receiver, msTimeout);
+            }
+        catch (SocketTimeoutException e)
+            {
+            closeSocket();
+            throw e;
+            }
+        catch (IOException e)
+            {
+            closeSocket();
+            // Once the receiver has seen some output, running the command again would repeat it
+            if (fresh || deliveredOutput || e instanceof UnavailableException || receiver.isCancelled()) throw e;
+
+            EventLog.dd(TAG, "session(%s) died(%s): restarting", serialNumber, e.getMessage());
+            executeOnce(command, receiver, msTimeout);
+            }
+        }
+
+    protected void executeOnce(String command, IShellOutputReceiver receiver, int msTimeout) throws IOException
+        {
+        Socket socket = ensureOpen();
+        socket.setSoTimeout(Math.min(msTimeout, msCancellationPoll));
+        String sentinel = String.format(Locale.ROOT, "__%s_%d__", nonce, ++commandCount);
+        String framed = String.format(Locale.ROOT, "{ %s\n} </dev/null 2>&1; printf '\\n%s %%d\\n' $?\n", command, sentinel);
+
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(framed.getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
+
+        deliveredOutput = false;
+        readUntil(socket.getInputStream(), ("\n" + sentinel + " ").getBytes(StandardCharsets.US_ASCII), receiver, msTimeout);
+        receiver.flush();
+        }
+
+    protected Socket ensureOpen() throws IOException
+        {
+        Socket socket = this.socket;
+        if (socket == null)
+            {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(serverAddress, Configuration.msAdbTimeoutFast);
+                socket.setSoTimeout(Configuration.msAdbTimeoutFast);
+                expectOkay(socket, "host:transport:" + serialNumber);
+                expectOkay(socket, "shell:sh");
+                }
+            catch (IOException e)
+                {
+                socket.close();
+                throw new UnavailableException(String.format(Locale.ROOT, "unable to open shell session on %s: %s", serialNumber, e.getMessage()), e);
+                }
+            EventLog.dd(TAG, "session(%s) opened", serialNumber);
+            this.socket = socket;
+            openCount++;
+            }
+        return socket;
+        }
+
+    protected void expectOkay(Socket socket, String request) throws IOException
+        {
+        AdbHostProtocol.writeRequest(socket.getOutputStream(), request);
+        InputStream inputStream = socket.getInputStream();
+        String status = AdbHostProtocol.readString(inputStream, 4);
+        if (!AdbHostProtocol.OKAY.equals(status))
+            {
+            String message = AdbHostProtocol.FAIL.equals(status) ? AdbHostProtocol.readLengthPrefixed(inputStream) : status;
+            throw new IOException(String.format(Locale.ROOT, "'%s' refused: %s", request, message));
+            }
+        }
+
+    /**
+     * Reads through to the end of the sentinel line, handing what precedes the sentinel to the
+     * receiver as it arrives. We hold back only as much as might be the start of the sentinel,
+     * so a receiver that caps or truncates its output, or that cancels once it's seen what it
+     * needs, can do so while the command is still running. Reads time out every {@link #msCancellationPoll}
+     * so that we notice promptly should the receiver be cancelled; only if msTimeout passes
+     * with no output at all do we give up on the command.
+     */
+    protected void readUntil(InputStream inputStream, byte[] sentinel, IShellOutputReceiver receiver, int msTimeout) throws IOException
+        {
+        byte[] buffer = new byte[1024];
+        byte[] pending = new byte[sentinel.length + cbSentinelLineMax + buffer.length];
+        int cbPending = 0;
+        int ibSentinel = -1;
+        long nsLastOutput = System.nanoTime();
+        for (;;)
+            {
+            if (receiver.isCancelled())
+                {
+                closeSocket();  // we'd otherwise have to read out the remainder of the output
+                throw new IOException("cancelled");
+                }
+
+            int cbRead;
+            try {
+                cbRead = inputStream.read(buffer);
+                }
+            catch (SocketTimeoutException e)
+                {
+                if (System.nanoTime() - nsLastOutput >= msTimeout * 1000000L) throw e;
+                continue;
+                }
+            if (cbRead < 0) throw new IOException("shell session closed by device");
+            nsLastOutput = System.nanoTime();
+            System.arraycopy(buffer, 0, pending, cbPending, cbRead);
+            cbPending += cbRead;
+
+            if (ibSentinel < 0)
+                {
+                ibSentinel = indexOf(pending, cbPending, sentinel, 0);
+                int cbDeliverable = ibSentinel >= 0
+                        ? ibSentinel
+                        : Math.max(0, cbPending - (sentinel.length - 1));
+                if (cbDeliverable > 0)
+                    {
+                    deliveredOutput = true;
+                    receiver.addOutput(pending, 0, cbDeliverable);
+                    System.arraycopy(pending, cbDeliverable, pending, 0, cbPending - cbDeliverable);
+                    cbPending -= cbDeliverable;
+                    if (ibSentinel >= 0) ibSentinel = 0;
+                    }
+                if (ibSentinel < 0) continue;
+                }
+
+            // We've the sentinel (at the start of pending); its line ends with the exit status
+            int ibEndOfLine = indexOf(pending, cbPending, new byte[] { '\n' }, sentinel.length);
+            if (ibEndOfLine >= 0)
+                {
+                if (ibEndOfLine + 1 != cbPending)
+                    {
+                    throw new IOException("unexpected output following command");
+                    }
+                return;
+                }
+            if (cbPending > sentinel.length + cbSentinelLineMax)
+                {
+                throw new IOException("malformed sentinel line");
+                }
+            }
+        }
+
+    protected static int indexOf(byte[] bytes, byte[] target, int ibStart)
+        {
+        return indexOf(bytes, bytes.length, target, ibStart);
+        }
+
+    /** Searches only the first cb bytes */
+    protected static int indexOf(byte[] bytes, int cb, byte[] target, int ibStart)
+        {
+        outer:
+        for (int ib = ibStart; ib <= cb - target.length; ib++)
+            {
+            for (int j = 0; j < target.length; j++)
+                {
+                if (bytes[ib + j] != target[j]) continue outer;
+                }
+            return ib;
+            }
+        return -1;
+        }
+
+    protected void closeSocket()
+        {
+        Socket socket = this.socket;
+        this.socket = null;
+        if (socket != null)
+            {
+            EventLog.dd(TAG, "session(%s) closed", serialNumber);
+            try {
+                socket.close();
+                }
+            catch (IOException e)
+                {
+                // ignore
+                }
+            }
+        }
+    }
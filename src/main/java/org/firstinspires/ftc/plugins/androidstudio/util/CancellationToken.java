@@ -0,0 +1,181 @@
+package org.firstinspires.ftc.plugins.androidstudio.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CancellationToken} tells long-running work when it should give up: because someone
+ * called {@link #cancel()}, because a deadline has passed, or because a token it was derived
+ * from has itself been cancelled. Work polls {@link #isCancelled()}; those who can't poll
+ * (e.g. someone blocked on a socket) can ask to be told via {@link #whenCancelled(Runnable)},
+ * though only of explicit cancellation of that very token. Derived tokens poll their parents
+ * rather than registering with them, so that long-lived tokens don't accumulate listeners.
+ *
+ * A token can be made current for a thread for the duration of some work, so that it reaches
+ * the commands that work issues without needing to be passed along each call in between.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CancellationToken
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "CancellationToken";
+
+    /** A token that's never cancelled */
+    public static final CancellationToken NONE = new CancellationToken(Long.MAX_VALUE, new CancellationToken[0]);
+
+    protected static final ThreadLocal<CancellationToken> current = ThreadLocal.withInitial(() -> NONE);
+
+    protected final long nsDeadline;    // Long.MAX_VALUE if none
+    protected final CancellationToken[] parents;
+    protected final List<Runnable> listeners = new ArrayList<>();
+    protected volatile boolean cancelled = false;
+
+    /** Restores the formerly current token when closed */
+    public class Scope implements AutoCloseable
+        {
+        protected final CancellationToken previous;
+
+        protected Scope(CancellationToken previous)
+            {
+            this.previous = previous;
+            }
+
+        @Override public void close()
+            {
+            current.set(previous);
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    protected CancellationToken(long nsDeadline, CancellationToken[] parents)
+        {
+        this.nsDeadline = nsDeadline;
+        this.parents = parents;
+        }
+
+    public static CancellationToken create()
+        {
+        return new CancellationToken(Long.MAX_VALUE, new CancellationToken[0]);
+        }
+
+    public static CancellationToken withTimeout(long timeout, TimeUnit timeUnit)
+        {
+        return new CancellationToken(System.nanoTime() + timeUnit.toNanos(timeout), new CancellationToken[0]);
+        }
+
+    /** Returns a token that's cancelled when any of these are */
+    public static CancellationToken anyOf(CancellationToken... tokens)
+        {
+        List<CancellationToken> parents = new ArrayList<>(Arrays.asList(tokens));
+        parents.remove(NONE);
+        return parents.size() == 1 ? parents.get(0) : new CancellationToken(Long.MAX_VALUE, parents.toArray(new CancellationToken[parents.size()]));
+        }
+
+    /** Returns a token that's cancelled when this one is, or after the timeout, whichever is first */
+    public CancellationToken withDeadline(long timeout, TimeUnit timeUnit)
+        {
+        return new CancellationToken(System.nanoTime() + timeUnit.toNanos(timeout), new CancellationToken[] { this });
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    /** The token of the work this thread is currently carrying out */
+    public static CancellationToken current()
+        {
+        return current.get();
+        }
+
+    /** Makes this the current token of this thread until the returned scope is closed */
+    public Scope enter()
+        {
+        Scope result = new Scope(current.get());
+        current.set(this);
+        return result;
+        }
+
+    public boolean isCancelled()
+        {
+        if (cancelled || (nsDeadline != Long.MAX_VALUE && System.nanoTime() - nsDeadline >= 0))
+            {
+            return true;
+            }
+        for (CancellationToken parent : parents)
+            {
+            if (parent.isCancelled())
+                {
+                return true;
+                }
+            }
+        return false;
+        }
+
+    /** The earliest of our deadline and those of our parents, in System.nanoTime() terms */
+    public long getDeadline()
+        {
+        long result = nsDeadline;
+        for (CancellationToken parent : parents)
+            {
+            long nsParent = parent.getDeadline();
+            if (result == Long.MAX_VALUE || (nsParent != Long.MAX_VALUE && nsParent - result < 0))
+                {
+                result = nsParent;
+                }
+            }
+        return result;
+        }
+
+    /** Returns the lesser of the time remaining until the deadline and the indicated limit, never negative */
+    public long msRemaining(long msLimit)
+        {
+        long nsDeadline = getDeadline();
+        if (nsDeadline == Long.MAX_VALUE)
+            {
+            return msLimit;
+            }
+        return Math.max(0, Math.min(msLimit, TimeUnit.NANOSECONDS.toMillis(nsDeadline - System.nanoTime())));
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    public void cancel()
+        {
+        List<Runnable> toNotify;
+        synchronized (listeners)
+            {
+            if (cancelled || this == NONE) return;
+            cancelled = true;
+            toNotify = new ArrayList<>(listeners);
+            listeners.clear();
+            }
+        for (Runnable listener : toNotify)
+            {
+            listener.run();
+            }
+        }
+
+    /** Runs the listener once this token is explicitly cancelled (immediately, if it already is) */
+    public void whenCancelled(Runnable listener)
+        {
+        synchronized (listeners)
+            {
+            if (!cancelled)
+                {
+                if (this != NONE) listeners.add(listener);
+                return;
+                }
+            }
+        listener.run();
+        }
+    }
@@ -0,0 +1,175 @@
+package org.firstinspires.ftc.plugins.androidstudio.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * {@link ConnectionRacer} attempts to connect to each of several candidates at once, in the
+ * manner of 'happy eyeballs' (RFC 6555): the candidates are started in order of preference,
+ * each a short stagger after the previous (or straight away, should the previous one fail),
+ * and the first success wins, cancelling all the others. The stagger gives the more preferred
+ * candidates the win in the event of a near tie.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ConnectionRacer<T>
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "ConnectionRacer";
+
+    public static class Result<T>
+        {
+        /** null if none of the candidates succeeded */
+        public final @Nullable T winner;
+        public final int winnerIndex;
+        public final int candidateCount;
+        public final long msElapsed;
+
+        public Result(@Nullable T winner, int winnerIndex, int candidateCount, long msElapsed)
+            {
+            this.winner = winner;
+            this.winnerIndex = winnerIndex;
+            this.candidateCount = candidateCount;
+            this.msElapsed = msElapsed;
+            }
+
+        @Override public String toString()
+            {
+            return winner == null
+                ? String.format(Locale.ROOT, "no winner of %d in %dms", candidateCount, msElapsed)
+                : String.format(Locale.ROOT, "winner=%s (#%d of %d) in %dms", winner, winnerIndex + 1, candidateCount, msElapsed);
+            }
+        }
+
+    protected final List<T> candidates;
+    protected final Function<T, CompletableFuture<Boolean>> attempt;
+    protected final int msStagger;
+
+    protected final List<CompletableFuture<Boolean>> attempts = new ArrayList<>();
+    protected final List<ScheduledFuture<?>> timers = new ArrayList<>();
+    protected final AtomicInteger nextCandidate = new AtomicInteger(0);
+    protected final AtomicInteger failedCount = new AtomicInteger(0);
+    protected final CompletableFuture<Result<T>> result = new CompletableFuture<>();
+    protected long nsStart;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    /** The candidates are in order of preference. Attempts are started on pool threads, so
+     * can take a little time before they return their future */
+    public ConnectionRacer(List<T> candidates, Function<T, CompletableFuture<Boolean>> attempt, int msStagger)
+        {
+        this.candidates = new ArrayList<>(candidates);
+        this.attempt = attempt;
+        this.msStagger = msStagger;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Starts the race. Cancelling the returned future cancels all outstanding attempts */
+    public CompletableFuture<Result<T>> race()
+        {
+        nsStart = System.nanoTime();
+        if (candidates.isEmpty())
+            {
+            finish(null, -1);
+            return result;
+            }
+
+        result.whenComplete((r, throwable) -> cancelAll());
+        synchronized (attempts)
+            {
+            for (int i = 1; i < candidates.size(); i++)
+                {
+                timers.add(ThreadPool.getScheduler().schedule(this::startNext, (long)i * msStagger, TimeUnit.MILLISECONDS));
+                }
+            }
+        startNext();
+        return result;
+        }
+
+    protected void startNext()
+        {
+        int index = nextCandidate.getAndIncrement();
+        if (index < candidates.size() && !result.isDone())
+            {
+            ThreadPool.getDefault().execute(() -> start(index));
+            }
+        }
+
+    protected void start(int index)
+        {
+        T candidate = candidates.get(index);
+        CompletableFuture<Boolean> future;
+        try {
+            future = attempt.apply(candidate);
+            }
+        catch (RuntimeException e)
+            {
+            EventLog.dd(TAG, "attempt threw: %s: %s", candidate, e.getMessage());
+            future = CompletableFuture.completedFuture(false);
+            }
+
+        synchronized (attempts)
+            {
+            attempts.add(future);
+            }
+        if (result.isDone())
+            {
+            future.cancel(true);
+            return;
+            }
+
+        future.whenComplete((success, throwable) ->
+            {
+            if (throwable == null && Boolean.TRUE.equals(success))
+                {
+                finish(candidate, index);
+                }
+            else
+                {
+                if (failedCount.incrementAndGet() == candidates.size())
+                    {
+                    finish(null, -1);
+                    }
+                else
+                    {
+                    startNext();    // no point making the next fellow wait out his stagger
+                    }
+                }
+            });
+        }
+
+    protected void finish(@Nullable T winner, int index)
+        {
+        result.complete(new Result<>(winner, index, candidates.size(), (System.nanoTime() - nsStart) / 1000000));
+        }
+
+    protected void cancelAll()
+        {
+        synchronized (attempts)
+            {
+            for (ScheduledFuture<?> timer : timers)
+                {
+                timer.cancel(false);
+                }
+            for (CompletableFuture<Boolean> future : attempts)
+                {
+                future.cancel(true);
+                }
+            }
+        }
+    }
@@ -0,0 +1,161 @@
+package org.firstinspires.ftc.plugins.androidstudio.util;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * {@link FailureCache} remembers which addresses we've recently failed to reach, so that we
+ * can avoid paying for the same futile ping or 'adb connect' over and over again. Each
+ * successive failure at an address lengthens (with some jitter) the window in which we'll
+ * not bother trying it again. Any sign that the address is alive clears its entry.
+ *
+ * The cache holds at most {@link Configuration#failureCacheCapacity} addresses, forgetting
+ * the least recently consulted ones first.
+ */
+@SuppressWarnings("WeakerAccess")
+public class FailureCache
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "FailureCache";
+
+    protected static class InstanceHolder
+        {
+        public static FailureCache theInstance = new FailureCache();
+        }
+    public static FailureCache getInstance() { return InstanceHolder.theInstance; }
+
+    public static class Entry extends MemberwiseCloneable<Entry>
+        {
+        public final InetAddress inetAddress;
+        public int     failureCount = 0;
+        public long    msLastFailure = 0;
+        public long    msRetryAfter = 0;
+
+        public Entry(InetAddress inetAddress)
+            {
+            this.inetAddress = inetAddress;
+            }
+
+        public Entry copy()
+            {
+            return memberwiseClone();
+            }
+        }
+
+    protected final Random random = new Random();
+    protected final LinkedHashMap<InetAddress, Entry> entries = new LinkedHashMap<InetAddress, Entry>(16, 0.75f, true)
+        {
+        @Override protected boolean removeEldestEntry(Map.Entry<InetAddress, FailureCache.Entry> eldest)
+            {
+            return size() > Configuration.failureCacheCapacity;
+            }
+        };
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Should we refrain from trying to reach this address right now? */
+    public boolean isBackingOff(InetAddress inetAddress)
+        {
+        synchronized (entries)
+            {
+            Entry entry = entries.get(inetAddress);
+            return entry != null && msNow() < entry.msRetryAfter;
+            }
+        }
+
+    public void noteFailure(InetAddress inetAddress)
+        {
+        synchronized (entries)
+            {
+            Entry entry = entries.computeIfAbsent(inetAddress, Entry::new);
+            entry.failureCount++;
+            entry.msLastFailure = msNow();
+            entry.msRetryAfter = entry.msLastFailure + msBackoff(entry.failureCount);
+            EventLog.dd(TAG, "failure #%d: %s: backing off %dms", entry.failureCount, IpUtil.toString(inetAddress), entry.msRetryAfter - entry.msLastFailure);
+            }
+        }
+
+    /** Notes that the address is alive. Any evidence of life will do. */
+    public void noteSuccess(InetAddress inetAddress)
+        {
+        clear(inetAddress);
+        }
+
+    public void clear(InetAddress inetAddress)
+        {
+        synchronized (entries)
+            {
+            if (entries.remove(inetAddress) != null)
+                {
+                EventLog.dd(TAG, "cleared: %s", IpUtil.toString(inetAddress));
+                }
+            }
+        }
+
+    public void clearAll()
+        {
+        synchronized (entries)
+            {
+            if (!entries.isEmpty())
+                {
+                EventLog.dd(TAG, "cleared all (%d)", entries.size());
+                entries.clear();
+                }
+            }
+        }
+
+    public List<Entry> snapshot()
+        {
+        synchronized (entries)
+            {
+            List<Entry> result = new ArrayList<>();
+            for (Entry entry : entries.values())
+                {
+                result.add(entry.copy());
+                }
+            return result;
+            }
+        }
+
+    public void debugDump(int indent, PrintStream out)
+        {
+        long msNow = msNow();
+        for (Entry entry : snapshot())
+            {
+            StringUtil.appendLine(indent, out, "unreachable=%s failures=%d retryIn=%dms", IpUtil.toString(entry.inetAddress), entry.failureCount, Math.max(0, entry.msRetryAfter - msNow));
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    /** Exponential in the number of failures, capped, then jittered by up to half again */
+    protected long msBackoff(int failureCount)
+        {
+        long ms = Configuration.msUnreachableBackoffInitial;
+        for (int i = 1; i < failureCount && ms < Configuration.msUnreachableBackoffMax; i++)
+            {
+            ms *= 2;
+            }
+        ms = Math.min(ms, Configuration.msUnreachableBackoffMax);
+        return ms + (long)(random.nextDouble() * ms / 2);
+        }
+
+    protected long msNow()
+        {
+        return System.currentTimeMillis();
+        }
+    }
@@ -1,27 +1,40 @@
 package org.firstinspires.ftc.plugins.androidstudio.util;
 
+import com.google.common.net.InetAddresses;
 import org.firstinspires.ftc.plugins.androidstudio.Configuration;
 
 import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
+import java.net.NetworkInterface;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A simple utility class for ip-related things
  */
 public class IpUtil
     {
+    /**
+     * Parses a literal IPv4 or IPv6 address, the latter optionally with a scope ('%wlan0' or
+     * '%3'). Never consults DNS: anything that isn't a literal address is rejected. A scope
+     * naming an interface we don't have is left off, rather than failing the parse.
+     *
+     * @throws IllegalArgumentException if the address isn't a literal one
+     */
     public static InetAddress parseInetAddress(String literalAddress)
         {
         if (literalAddress==null) return null;
-        try {
-            return InetAddress.getByName(literalAddress);
-            }
-        catch (UnknownHostException e)
+        int ichScope = literalAddress.indexOf(':') >= 0 ? literalAddress.indexOf('%') : -1;
+        String address = ichScope >= 0 ? literalAddress.substring(0, ichScope) : literalAddress;
+        if (!InetAddresses.isInetAddress(address))
             {
-            throw new RuntimeException("internal error parsing inetAddress: " + literalAddress, e);
+            throw new IllegalArgumentException("internal error parsing inetAddress: " + literalAddress);
             }
+        InetAddress result = InetAddresses.forString(address);
+        return ichScope >= 0 && result instanceof Inet6Address
+                ? withScope((Inet6Address)result, literalAddress.substring(ichScope + 1))
+                : result;   // an IPv4-mapped address comes back as an Inet4Address, which has no scope
         }
 
     public static String toString(InetAddress inetAddress)
@@ -31,25 +44,86 @@ public class IpUtil
                 : inetAddress.getHostAddress();
         }
 
+    /**
+     * Parses 'address:port', where an IPv6 address is in brackets, as in '[fe80::1%wlan0]:5555'.
+     * Like {@link #parseInetAddress(String)}, never consults DNS.
+     *
+     * @throws IllegalArgumentException if that's not what we've been given
+     */
     public static InetSocketAddress parseInetSocketAddress(String literalAddressAndPort)
         {
         if (literalAddressAndPort==null) return null;
-        String[] splits = literalAddressAndPort.split(":");
-        return new InetSocketAddress(parseInetAddress(splits[0]), Integer.parseInt(splits[1]));
+        String address;
+        String port;
+        if (literalAddressAndPort.startsWith("["))
+            {
+            int ichClose = literalAddressAndPort.indexOf("]:");
+            if (ichClose < 0) throw new IllegalArgumentException("internal error parsing inetSocketAddress: " + literalAddressAndPort);
+            address = literalAddressAndPort.substring(1, ichClose);
+            port = literalAddressAndPort.substring(ichClose + 2);
+            }
+        else
+            {
+            int ichColon = literalAddressAndPort.lastIndexOf(':');
+            if (ichColon < 0 || literalAddressAndPort.indexOf(':') != ichColon) throw new IllegalArgumentException("internal error parsing inetSocketAddress: " + literalAddressAndPort);
+            address = literalAddressAndPort.substring(0, ichColon);
+            port = literalAddressAndPort.substring(ichColon + 1);
+            }
+        int portNumber = parsePort(port);
+        if (portNumber < 0) throw new IllegalArgumentException("internal error parsing inetSocketAddress: " + literalAddressAndPort);
+        return new InetSocketAddress(parseInetAddress(address), portNumber);
         }
 
+    /** IPv6 addresses are bracketed, so that the result can be parsed by {@link #parseInetSocketAddress(String)} */
     public static String toString(InetSocketAddress inetSocketAddress)
         {
-        return inetSocketAddress==null
-                ? null
-                : toString(inetSocketAddress.getAddress()) + ":" + inetSocketAddress.getPort();
+        if (inetSocketAddress==null) return null;
+        InetAddress inetAddress = inetSocketAddress.getAddress();
+        return inetAddress instanceof Inet6Address
+                ? "[" + toString(inetAddress) + "]:" + inetSocketAddress.getPort()
+                : toString(inetAddress) + ":" + inetSocketAddress.getPort();
+        }
+
+    /** Is there an adbd accepting connections at the indicated address? That's exactly what
+     * 'adb connect' needs, and is both quicker and more reliable to find out than a ping. */
+    public static CompletableFuture<Boolean> isAdbListeningAsync(InetSocketAddress inetSocketAddress)
+        {
+        FailureCache failureCache = FailureCache.getInstance();
+        if (failureCache.isBackingOff(inetSocketAddress.getAddress()))
+            {
+            EventLog.dd(IpUtil.class, "not probing: %s: recently unreachable", toString(inetSocketAddress));
+            return CompletableFuture.completedFuture(false);
+            }
+
+        CompletableFuture<Boolean> result = TcpProber.getInstance().probe(inetSocketAddress, Configuration.msAdbTimeoutFast, Configuration.tcpProbeHandshake);
+        result.thenAccept(listening ->
+            {
+            EventLog.dd(IpUtil.class, "probed: %s: %s", toString(inetSocketAddress), listening ? "listening" : "not listening");
+            if (listening)
+                failureCache.noteSuccess(inetSocketAddress.getAddress());
+            else
+                failureCache.noteFailure(inetSocketAddress.getAddress());
+            });
+        return result;
         }
 
     public static boolean isPingable(InetAddress inetAddress)
         {
+        FailureCache failureCache = FailureCache.getInstance();
+        if (failureCache.isBackingOff(inetAddress))
+            {
+            EventLog.dd(IpUtil.class, "not pinging: %s: recently unreachable", toString(inetAddress));
+            return false;
+            }
+
         EventLog.dd(IpUtil.class, "pinging: %s...", toString(inetAddress));
         try {
-            return inetAddress.isReachable(Configuration.msAdbTimeoutFast);
+            boolean result = inetAddress.isReachable(Configuration.msAdbTimeoutFast);
+            if (result)
+                failureCache.noteSuccess(inetAddress);
+            else
+                failureCache.noteFailure(inetAddress);
+            return result;
             }
         catch (IOException|RuntimeException e)
             {
@@ -60,4 +134,44 @@ public class IpUtil
             EventLog.dd(IpUtil.class, "...pinging: %s", toString(inetAddress));
             }
         }
+    
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    /** Returns the value of the (short) run of decimal digits, or -1 if it isn't one */
+    protected static int parsePort(String digits)
+        {
+        if (digits.isEmpty() || digits.length() > 5) return -1;
+        int result = 0;
+        for (int ich = 0; ich < digits.length(); ich++)
+            {
+            char ch = digits.charAt(ich);
+            if (ch < '0' || ch > '9') return -1;
+            result = result * 10 + (ch - '0');
+            }
+        return result <= 65535 ? result : -1;
+        }
+
+    protected static InetAddress withScope(Inet6Address inetAddress, String scope)
+        {
+        try {
+            int scopeId = parsePort(scope);
+            if (scopeId >= 0)
+                {
+                return Inet6Address.getByAddress(null, inetAddress.getAddress(), scopeId);
+                }
+            NetworkInterface networkInterface = scope.isEmpty() ? null : NetworkInterface.getByName(scope);
+            if (networkInterface != null)
+                {
+                return Inet6Address.getByAddress(null, inetAddress.getAddress(), networkInterface);
+                }
+            }
+        catch (IOException e)
+            {
+            // fall through
+            }
+        EventLog.dd(IpUtil.class, "unknown scope '%s' for %s: ignored", scope, toString(inetAddress));
+        return inetAddress;
+        }
     }
@@ -0,0 +1,108 @@
+package org.firstinspires.ftc.plugins.androidstudio.util;
+
+import java.util.Locale;
+
+/**
+ * {@link LatencyHistogram} counts durations into a fixed set of buckets, 1-2-5 spaced from
+ * 10ms up to 100s (and one more for anything longer), keeping also the count, total, least
+ * and greatest. That's coarse, but it's cheap, bounded, and quite enough to see where the
+ * seconds go. Percentiles are reported as the upper bound of the bucket in which they fall.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LatencyHistogram
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    /** Upper bounds (inclusive) of all but the last bucket, in ms */
+    protected static final long[] msBounds = { 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000 };
+
+    protected final String name;
+    protected final long[] counts = new long[msBounds.length + 1];
+    protected long count = 0;
+    protected long msTotal = 0;
+    protected long msMin = Long.MAX_VALUE;
+    protected long msMax = Long.MIN_VALUE;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public LatencyHistogram(String name)
+        {
+        this.name = name;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public String getName()
+        {
+        return name;
+        }
+
+    public synchronized long getCount()
+        {
+        return count;
+        }
+
+    public synchronized long getMsMean()
+        {
+        return count == 0 ? 0 : msTotal / count;
+        }
+
+    /** Returns the bound below which the given fraction (0..1) of samples fall; -1 if that's
+     * beyond our last bound, and 0 if we've no samples */
+    public synchronized long getMsPercentile(double fraction)
+        {
+        if (count == 0) return 0;
+        long needed = Math.max(1, (long)Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < msBounds.length; i++)
+            {
+            seen += counts[i];
+            if (seen >= needed) return Math.min(msBounds[i], msMax);
+            }
+        return -1;
+        }
+
+    @Override public synchronized String toString()
+        {
+        if (count == 0)
+            {
+            return String.format(Locale.ROOT, "%s: none", name);
+            }
+        return String.format(Locale.ROOT, "%s: n=%d min=%d mean=%d p50<=%s p90<=%s max=%d (ms)",
+                name, count, msMin, getMsMean(), formatBound(getMsPercentile(0.5)), formatBound(getMsPercentile(0.9)), msMax);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    public synchronized void record(long ms)
+        {
+        ms = Math.max(0, ms);
+        int bucket = 0;
+        while (bucket < msBounds.length && ms > msBounds[bucket])
+            {
+            bucket++;
+            }
+        counts[bucket]++;
+        count++;
+        msTotal += ms;
+        msMin = Math.min(msMin, ms);
+        msMax = Math.max(msMax, ms);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    protected String formatBound(long ms)
+        {
+        return ms < 0 ? "inf" : Long.toString(ms);
+        }
+    }
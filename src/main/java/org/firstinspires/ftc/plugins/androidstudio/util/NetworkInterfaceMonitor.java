@@ -2,6 +2,7 @@ package org.firstinspires.ftc.plugins.androidstudio.util;
 
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashSet;
@@ -91,6 +92,12 @@ public class NetworkInterfaceMonitor
             }
         }
 
+    /** The interfaces that were up as of the most recent poll */
+    public Collection<NetworkInterface> getUpInterfacesSnapshot()
+        {
+        return new ArrayList<>(currentInterfaces.values());
+        }
+
     protected <T> Set<T> setDifference(Set<T> left, Collection<T> right)
         {
         Set<T> result = new HashSet<>(left);
@@ -107,6 +114,12 @@ public class NetworkInterfaceMonitor
         Set<String> newlyUp = setDifference(newSet, currentSet);
         Set<String> newlyDown = setDifference(currentSet, newSet);
 
+        if (!newlyUp.isEmpty() || !newlyDown.isEmpty())
+            {
+            // What we knew of who's reachable from here may no longer be so
+            ReachabilityService.getInstance().flush();
+            }
+
         if (!newlyUp.isEmpty())
             {
             callback.onNetworkInterfacesUp();
@@ -0,0 +1,206 @@
+package org.firstinspires.ftc.plugins.androidstudio.util;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * {@link ReachabilityService} answers, for the whole process, whether an address can be pinged
+ * or has an adbd listening at it. Each device asks these questions of the same few addresses
+ * (the WifiDirect group owner in particular) on each refresh; here, the first to ask starts a
+ * probe, any who ask while it's under way share it, and any who ask soon after get the same
+ * answer: for {@link Configuration#msReachablePositiveTtl} should the answer have been yes,
+ * or for {@link Configuration#msReachableNegativeTtl} should it have been no.
+ *
+ * What we know is likely to be wrong once the network interfaces change, so
+ * {@link NetworkInterfaceMonitor} then {@link #flush()}es it.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ReachabilityService
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "ReachabilityService";
+
+    protected static class InstanceHolder
+        {
+        public static ReachabilityService theInstance = new ReachabilityService();
+        }
+    public static ReachabilityService getInstance() { return InstanceHolder.theInstance; }
+
+    protected enum Kind { PING, ADB }
+
+    protected static class Key
+        {
+        final Kind kind;
+        final Object address;   // InetAddress for PING, InetSocketAddress for ADB
+
+        Key(Kind kind, Object address)
+            {
+            this.kind = kind;
+            this.address = address;
+            }
+
+        @Override public boolean equals(Object o)
+            {
+            if (!(o instanceof Key)) return false;
+            Key them = (Key)o;
+            return kind == them.kind && address.equals(them.address);
+            }
+
+        @Override public int hashCode()
+            {
+            return Objects.hash(kind, address);
+            }
+        }
+
+    protected static class Entry
+        {
+        final CompletableFuture<Boolean> result;
+        long nsExpires = Long.MAX_VALUE;    // not until the probe completes
+        boolean completed = false;
+
+        Entry(CompletableFuture<Boolean> result)
+            {
+            this.result = result;
+            }
+        }
+
+    protected final Map<Key, Entry> entries = new HashMap<>();
+    protected long probeCount = 0;
+    protected long sharedCount = 0;
+    protected long hitCount = 0;
+    protected long flushCount = 0;
+    protected final LatencyHistogram pingLatency = new LatencyHistogram("ping");
+    protected final LatencyHistogram adbLatency = new LatencyHistogram("adb");
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public long getProbeCount()
+        {
+        synchronized (entries)
+            {
+            return probeCount;
+            }
+        }
+
+    public LatencyHistogram getPingLatency()
+        {
+        return pingLatency;
+        }
+
+    public LatencyHistogram getAdbLatency()
+        {
+        return adbLatency;
+        }
+
+    public void debugDump(int indent, PrintStream out)
+        {
+        synchronized (entries)
+            {
+            StringUtil.appendLine(indent, out, "reachability: entries=%d probes=%d shared=%d hits=%d flushes=%d",
+                    entries.size(), probeCount, sharedCount, hitCount, flushCount);
+            }
+        StringUtil.appendLine(indent + 1, out, "%s", pingLatency);
+        StringUtil.appendLine(indent + 1, out, "%s", adbLatency);
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** As {@link IpUtil#isPingable(InetAddress)}, but shared */
+    public CompletableFuture<Boolean> isPingableAsync(InetAddress inetAddress)
+        {
+        return lookup(new Key(Kind.PING, inetAddress), pingLatency,
+                () -> CompletableFuture.supplyAsync(() -> IpUtil.isPingable(inetAddress), ThreadPool.getDefault()));
+        }
+
+    /** As {@link IpUtil#isAdbListeningAsync(InetSocketAddress)}, but shared */
+    public CompletableFuture<Boolean> isAdbListeningAsync(InetSocketAddress inetSocketAddress)
+        {
+        return lookup(new Key(Kind.ADB, inetSocketAddress), adbLatency,
+                () -> IpUtil.isAdbListeningAsync(inetSocketAddress));
+        }
+
+    /** Forgets all we know. Probes under way carry on, but their answers go only to those already waiting. */
+    public void flush()
+        {
+        synchronized (entries)
+            {
+            if (!entries.isEmpty())
+                {
+                EventLog.dd(TAG, "flush(%d)", entries.size());
+                entries.clear();
+                }
+            flushCount++;
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    protected CompletableFuture<Boolean> lookup(Key key, LatencyHistogram latency, Supplier<CompletableFuture<Boolean>> probe)
+        {
+        Entry entry;
+        synchronized (entries)
+            {
+            entry = entries.get(key);
+            if (entry != null && entry.completed && System.nanoTime() - entry.nsExpires >= 0)
+                {
+                entries.remove(key);
+                entry = null;
+                }
+            if (entry != null)
+                {
+                if (entry.completed) hitCount++; else sharedCount++;
+                return entry.result.thenApply(reachable -> reachable);   // so that no one caller can cancel it for all
+                }
+            probeCount++;
+            if (entries.size() >= Configuration.reachabilityCacheSweepThreshold)
+                {
+                long nsNow = System.nanoTime();
+                entries.values().removeIf(stale -> stale.completed && nsNow - stale.nsExpires >= 0);
+                }
+            entry = new Entry(new CompletableFuture<>());
+            entries.put(key, entry);
+            }
+
+        long nsStart = System.nanoTime();
+        Entry ourEntry = entry;
+        CompletableFuture<Boolean> probed;
+        try {
+            probed = probe.get();
+            }
+        catch (RuntimeException e)
+            {
+            probed = CompletableFuture.completedFuture(false);
+            }
+        probed.whenComplete((reachable, throwable) ->
+            {
+            boolean result = throwable == null && Boolean.TRUE.equals(reachable);
+            long nsNow = System.nanoTime();
+            latency.record(TimeUnit.NANOSECONDS.toMillis(nsNow - nsStart));
+            synchronized (entries)
+                {
+                ourEntry.completed = true;
+                ourEntry.nsExpires = nsNow + (result ? Configuration.msReachablePositiveTtl : Configuration.msReachableNegativeTtl) * 1000000L;
+                }
+            ourEntry.result.complete(result);
+            });
+        return ourEntry.result.thenApply(reachable -> reachable);
+        }
+    }
@@ -0,0 +1,415 @@
+package org.firstinspires.ftc.plugins.androidstudio.util;
+
+import org.firstinspires.ftc.plugins.androidstudio.Configuration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * {@link TcpProber} tests whether TCP ports are accepting connections. All probes are carried
+ * out with non-blocking sockets from a single selector thread, so many addresses can be probed
+ * at once for very little cost, each with its own deadline.
+ *
+ * Optionally, once connected a probe goes on to send an ADB CNXN message and waits for the
+ * beginnings of a reply (a CNXN, AUTH, or STLS message), thus confirming that it's actually an
+ * adbd on the other end.
+ *
+ * References:
+ *      https://android.googlesource.com/platform/system/core/+/master/adb/protocol.txt
+ */
+@SuppressWarnings("WeakerAccess")
+public class TcpProber
+    {
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "TcpProber";
+
+    protected static class InstanceHolder
+        {
+        public static TcpProber theInstance = new TcpProber(Configuration.tcpProbeConcurrency);
+        }
+    public static TcpProber getInstance() { return InstanceHolder.theInstance; }
+
+    public static final int A_CNXN = 0x4e584e43;
+    public static final int A_AUTH = 0x48545541;
+    public static final int A_STLS = 0x534c5453;
+    public static final int A_VERSION = 0x01000000;
+    public static final int MAX_PAYLOAD = 4096;
+    public static final int ADB_HEADER_LENGTH = 24;
+
+    protected static class Probe
+        {
+        final InetSocketAddress inetSocketAddress;
+        final int msTimeout;
+        final boolean handshake;
+        long nsDeadline;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        SocketChannel channel;
+        ByteBuffer buffer;
+
+        Probe(InetSocketAddress inetSocketAddress, int msTimeout, boolean handshake)
+            {
+            this.inetSocketAddress = inetSocketAddress;
+            this.msTimeout = msTimeout;
+            this.handshake = handshake;
+            }
+        }
+
+    protected final int maxConcurrent;
+    protected final int maxPerSecond;
+    protected long nsNextStart = 0;
+    protected final Queue<Probe> waiting = new ConcurrentLinkedQueue<>();
+    protected final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    protected final Queue<Probe> active = new ArrayDeque<>();   // only touched on the selector thread
+    protected volatile Selector selector = null;
+    protected Thread thread = null;     // guarded by this, as are additions to waiting
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    /** At most maxConcurrent probes will be in progress at once; the rest wait their turn */
+    public TcpProber(int maxConcurrent)
+        {
+        this(maxConcurrent, 0);
+        }
+
+    /** As above, and, if maxPerSecond is non-zero, probes are started no faster than that */
+    public TcpProber(int maxConcurrent, int maxPerSecond)
+        {
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerSecond = maxPerSecond;
+        }
+
+    /** Should the selector thread have died, the next probe starts another */
+    protected synchronized Selector ensureStarted() throws IOException
+        {
+        if (thread == null)
+            {
+            selector = Selector.open();
+            thread = new Thread(this::run, Configuration.PROJECT_NAME + "-" + TAG);
+            thread.setDaemon(true);
+            thread.start();
+            }
+        return selector;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /** Completes with whether the port accepted our connection (and, if handshake is true,
+     * whether an adbd answered) within the timeout, which is counted from when the probe gets
+     * underway rather than from when it's queued. Cancelling the future abandons the probe. */
+    public CompletableFuture<Boolean> probe(InetSocketAddress inetSocketAddress, int msTimeout, boolean handshake)
+        {
+        Probe probe = new Probe(inetSocketAddress, msTimeout, handshake);
+        try {
+            Selector selector;
+            synchronized (this)
+                {
+                // Queued with the lock held, so a dying selector thread can't miss it
+                selector = ensureStarted();
+                waiting.add(probe);
+                }
+            probe.result.whenComplete((result, throwable) -> runOnSelector(() -> close(probe)));
+            selector.wakeup();
+            }
+        catch (IOException e)
+            {
+            probe.result.complete(false);
+            }
+        return probe.result;
+        }
+
+    public Map<InetSocketAddress, CompletableFuture<Boolean>> probeAll(Collection<InetSocketAddress> inetSocketAddresses, int msTimeout, boolean handshake)
+        {
+        Map<InetSocketAddress, CompletableFuture<Boolean>> result = new LinkedHashMap<>();
+        for (InetSocketAddress inetSocketAddress : inetSocketAddresses)
+            {
+            result.put(inetSocketAddress, probe(inetSocketAddress, msTimeout, handshake));
+            }
+        return result;
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // Selector thread
+    //----------------------------------------------------------------------------------------------
+
+    protected void runOnSelector(Runnable runnable)
+        {
+        selectorTasks.add(runnable);
+        Selector selector = this.selector;
+        if (selector != null) selector.wakeup();
+        }
+
+    protected void run()
+        {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true)
+                {
+                for (Runnable task; (task = selectorTasks.poll()) != null; )
+                    {
+                    try {
+                        task.run();
+                        }
+                    catch (RuntimeException e)
+                        {
+                        EventLog.ee(TAG, e, "selector task failed");
+                        }
+                    }
+                startWaiting();
+                expire();
+
+                selector.select(msUntilNextDeadline());
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext())
+                    {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        service(key);
+                        }
+                    catch (RuntimeException e)
+                        {
+                        EventLog.ee(TAG, e, "probe failed");
+                        Probe probe = (Probe)key.attachment();
+                        probe.result.complete(false);
+                        close(probe);
+                        }
+                    }
+                }
+            }
+        catch (IOException|RuntimeException e)
+            {
+            EventLog.ee(TAG, e, "selector failed");
+            }
+        finally
+            {
+            shutdown();
+            }
+        }
+
+    /** The selector thread is exiting. Fail whatever it had in hand, and let the next probe start another. */
+    protected void shutdown()
+        {
+        Selector selector;
+        List<Probe> failed = new ArrayList<>();
+        synchronized (this)
+            {
+            // Taken in hand with the lock held: once it's released, a new thread may start
+            selector = this.selector;
+            this.selector = null;
+            thread = null;
+            failed.addAll(active);
+            active.clear();
+            for (Probe probe; (probe = waiting.poll()) != null; )
+                {
+                failed.add(probe);
+                }
+            }
+        for (Probe probe : failed)
+            {
+            probe.result.complete(false);
+            closeChannel(probe);
+            }
+        try {
+            if (selector != null) selector.close();
+            }
+        catch (IOException e)
+            {
+            // ignore
+            }
+        }
+
+    protected void startWaiting()
+        {
+        while (active.size() < maxConcurrent)
+            {
+            long nsNow = System.nanoTime();
+            if (maxPerSecond > 0 && nsNow - nsNextStart < 0) break;
+
+            Probe probe = waiting.poll();
+            if (probe == null) break;
+            if (probe.result.isDone()) continue;
+            if (maxPerSecond > 0)
+                {
+                nsNextStart = Math.max(nsNextStart, nsNow - 1000000000L / maxPerSecond) + 1000000000L / maxPerSecond;
+                }
+            try {
+                probe.nsDeadline = nsNow + probe.msTimeout * 1000000L;
+                probe.channel = SocketChannel.open();
+                probe.channel.configureBlocking(false);
+                active.add(probe);
+                if (probe.channel.connect(probe.inetSocketAddress))
+                    {
+                    connected(probe, probe.channel.register(selector, 0, probe));
+                    }
+                else
+                    {
+                    probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+                    }
+                }
+            catch (IOException|RuntimeException e)
+                {
+                probe.result.complete(false);
+                close(probe);
+                }
+            }
+        }
+
+    protected void service(SelectionKey key)
+        {
+        Probe probe = (Probe)key.attachment();
+        try {
+            if (key.isValid() && key.isConnectable())
+                {
+                if (probe.channel.finishConnect())
+                    {
+                    connected(probe, key);
+                    }
+                }
+            else if (key.isValid() && key.isWritable())
+                {
+                probe.channel.write(probe.buffer);
+                if (!probe.buffer.hasRemaining())
+                    {
+                    probe.buffer = ByteBuffer.allocate(ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+                    key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            else if (key.isValid() && key.isReadable())
+                {
+                if (probe.channel.read(probe.buffer) < 0)
+                    {
+                    probe.result.complete(false);
+                    }
+                else if (!probe.buffer.hasRemaining())
+                    {
+                    probe.result.complete(isAdbReply(probe.buffer));
+                    }
+                }
+            }
+        catch (IOException e)
+            {
+            probe.result.complete(false);   // typically 'connection refused'
+            }
+        if (probe.result.isDone())
+            {
+            close(probe);
+            }
+        }
+
+    protected void connected(Probe probe, SelectionKey key)
+        {
+        if (probe.handshake)
+            {
+            probe.buffer = composeConnect();
+            key.interestOps(SelectionKey.OP_WRITE);
+            }
+        else
+            {
+            probe.result.complete(true);
+            }
+        }
+
+    protected void expire()
+        {
+        long nsNow = System.nanoTime();
+        for (Iterator<Probe> iterator = active.iterator(); iterator.hasNext(); )
+            {
+            Probe probe = iterator.next();
+            if (probe.result.isDone() || nsNow - probe.nsDeadline >= 0)
+                {
+                probe.result.complete(false);
+                closeChannel(probe);
+                iterator.remove();
+                }
+            }
+        }
+
+    protected long msUntilNextDeadline()
+        {
+        long nsNow = System.nanoTime();
+        long nsNext = Long.MAX_VALUE;
+        for (Probe probe : active)
+            {
+            nsNext = Math.min(nsNext, probe.nsDeadline - nsNow);
+            }
+        if (!waiting.isEmpty() && active.size() < maxConcurrent)
+            {
+            nsNext = Math.min(nsNext, nsNextStart - nsNow);   // we're being rate limited
+            }
+        return nsNext == Long.MAX_VALUE ? 0 : Math.max(1, nsNext / 1000000 + 1);
+        }
+
+    protected void close(Probe probe)
+        {
+        closeChannel(probe);
+        active.remove(probe);
+        }
+
+    protected void closeChannel(Probe probe)
+        {
+        if (probe.channel != null)
+            {
+            try {
+                probe.channel.close();
+                }
+            catch (IOException e)
+                {
+                // ignore
+                }
+            }
+        }
+
+    //----------------------------------------------------------------------------------------------
+    // ADB wire format
+    //----------------------------------------------------------------------------------------------
+
+    protected static ByteBuffer composeConnect()
+        {
+        byte[] payload = "host::\0".getBytes(StandardCharsets.US_ASCII);
+        int checksum = 0;
+        for (byte b : payload)
+            {
+            checksum += b & 0xFF;
+            }
+        ByteBuffer result = ByteBuffer.allocate(ADB_HEADER_LENGTH + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+        result.putInt(A_CNXN);
+        result.putInt(A_VERSION);
+        result.putInt(MAX_PAYLOAD);
+        result.putInt(payload.length);
+        result.putInt(checksum);
+        result.putInt(~A_CNXN);
+        result.put(payload);
+        result.flip();
+        return result;
+        }
+
+    protected static boolean isAdbReply(ByteBuffer header)
+        {
+        int command = header.getInt(0);
+        int magic = header.getInt(20);
+        return (command == A_CNXN || command == A_AUTH || command == A_STLS) && magic == ~command;
+        }
+    }
@@ -6,6 +6,7 @@ import org.firstinspires.ftc.plugins.androidstudio.Configuration;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Created by bob on 2017-07-07.
@@ -18,8 +19,19 @@ public class ThreadPool
         public static ExecutorService theInstance = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat(Configuration.PROJECT_NAME + "-%d").build());
         }
 
+    /** Timers only: work that takes any time at all should be handed off to {@link #getDefault()} */
+    protected static class SchedulerHolder
+        {
+        public static ScheduledExecutorService theInstance = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(Configuration.PROJECT_NAME + "-timer-%d").setDaemon(true).build());
+        }
+
     public static Executor getDefault()
         {
         return ThreadPoolHolder.theInstance;
         }
+
+    public static ScheduledExecutorService getScheduler()
+        {
+        return SchedulerHolder.theInstance;
+        }
     }